@@ -0,0 +1,25 @@
+#!/usr/bin/env bash
+
+#####################################################################################
+# Run the SaxonUtils JMH benchmarks and keep the results as JSON, so runs can be
+# compared over time. Any options are passed on to JMH, e.g., to run only the
+# XPath benchmarks with a single fork:
+#
+#      ./bench.sh XPathBenchmark -f 1
+#
+#####################################################################################
+
+SCRIPT_DIR="$( cd "$(dirname "$0")" ; pwd -P )"
+RESULTS_DIR="${RESULTS_DIR:-${SCRIPT_DIR}/results}"
+JAR="${SCRIPT_DIR}/target/benchmarks.jar"
+
+if ! [ -f "${JAR}" ]; then
+	echo "Benchmark jar ${JAR} not found, run \"mvn install\" in the parent directory and \"mvn package\" here first"
+	exit 1
+fi
+
+mkdir -p "${RESULTS_DIR}"
+RESULT="${RESULTS_DIR}/jmh-$(date +%Y%m%d-%H%M%S)-$(git -C "${SCRIPT_DIR}" rev-parse --short HEAD 2>/dev/null || echo unknown).json"
+
+echo "Results: ${RESULT}"
+java -jar "${JAR}" -rf json -rff "${RESULT}" "$@"
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import nl.mpi.tla.util.CompiledAvt;
+import nl.mpi.tla.util.Saxon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of Saxon.avt against a precompiled AVT.
+ *
+ * @author menzowi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AvtBenchmark {
+
+    private static final String AVT = "{/cmd:CMD/cmd:Header/cmd:MdSelfLink}: {count(//cmdp:Actor[@role=$role])} {$role}s"
+            + " in {{sessions}} {/cmd:CMD/cmd:Components/cmdp:Session/cmdp:Name}";
+
+    private Corpus corpus;
+    private XdmNode record;
+    private CompiledAvt compiled;
+    private final Map<String, String> nss = new HashMap<>();
+    private final Map<String, XdmValue> vars = new HashMap<>();
+
+    @Setup
+    public void setup() throws Exception {
+        corpus = Corpus.generate(1, 4);
+        record = Saxon.buildDocument(new StreamSource(corpus.getRecords().get(0).toFile()));
+        nss.put("cmd", Corpus.CMD_NS);
+        nss.put("cmdp", Corpus.CMDP_NS);
+        vars.put("role", new XdmAtomicValue("speaker"));
+        compiled = Saxon.compileAvt(AVT, vars.keySet(), nss);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public String avt() throws Exception {
+        return Saxon.avt(AVT, record, vars, nss);
+    }
+
+    @Benchmark
+    public String compiledAvt() throws Exception {
+        return compiled.evaluate(record, vars);
+    }
+}
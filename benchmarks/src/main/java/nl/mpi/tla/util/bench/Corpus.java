@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a synthetic BagIt bag of CMDI records with resources, plus a
+ * JSON dump, to run the benchmarks against. The corpus is deterministic
+ * for a given size.
+ *
+ * @author menzowi
+ */
+public class Corpus {
+
+    public static final String CMD_NS = "http://www.clarin.eu/cmd/1";
+    public static final String CMDP_NS = "http://www.clarin.eu/cmd/1/profiles/clarin.eu:cr1:p_1407745712035";
+
+    private final Path dir;
+    private final Path bag;
+    private final List<Path> records = new ArrayList<>();
+    private final List<Path> resources = new ArrayList<>();
+    private Path json;
+
+    private Corpus(final Path dir) {
+        this.dir = dir;
+        this.bag = dir.resolve("bag");
+    }
+
+    /**
+     * Generate a corpus in a new temporary directory.
+     *
+     * @param records The number of CMDI records
+     * @param resources The number of resources per record
+     * @return The corpus
+     * @throws IOException
+     */
+    public static Corpus generate(final int records, final int resources) throws IOException {
+        final Corpus corpus = new Corpus(Files.createTempDirectory("saxonutils-bench-"));
+        corpus.build(records, resources);
+        return corpus;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public Path getBag() {
+        return bag;
+    }
+
+    public List<Path> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    public List<Path> getResources() {
+        return Collections.unmodifiableList(resources);
+    }
+
+    public Path getJson() {
+        return json;
+    }
+
+    protected void build(final int n, final int r) throws IOException {
+        final Random rnd = new Random(n * 31L + r);
+        final Path data = bag.resolve("data");
+        Files.createDirectories(data);
+        write(bag.resolve("bagit.txt"), "BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8\n");
+        final StringBuilder manifest = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            final String id = String.format("rec%06d", i);
+            final Path rec = data.resolve(id);
+            final Path md = rec.resolve("metadata");
+            final Path res = rec.resolve("resources");
+            Files.createDirectories(md);
+            Files.createDirectories(res);
+            final List<String> refs = new ArrayList<>();
+            for (int j = 0; j < r; j++) {
+                final String name = String.format("%s-%03d.%s", id, j, (j % 2 == 0 ? "wav" : "eaf"));
+                final Path file = res.resolve(name);
+                final byte[] bytes = new byte[1024 + rnd.nextInt(16 * 1024)];
+                rnd.nextBytes(bytes);
+                Files.write(file, bytes);
+                resources.add(file);
+                refs.add("../resources/" + name);
+                manifest.append("0  data/").append(id).append("/resources/").append(name).append('\n');
+            }
+            final Path cmdi = md.resolve("record.cmdi");
+            writeRecord(cmdi, id, refs, rnd);
+            records.add(cmdi);
+            manifest.append("0  data/").append(id).append("/metadata/record.cmdi\n");
+        }
+        write(bag.resolve("manifest-md5.txt"), manifest.toString());
+        json = dir.resolve("dump.json");
+        writeJson(json, n, rnd);
+    }
+
+    protected void writeRecord(final Path file, final String id, final List<String> refs, final Random rnd)
+            throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<cmd:CMD xmlns:cmd=\"" + CMD_NS + "\" xmlns:cmdp=\"" + CMDP_NS + "\" CMDVersion=\"1.2\">\n");
+            out.write("  <cmd:Header>\n    <cmd:MdCreator>bench</cmd:MdCreator>\n");
+            out.write("    <cmd:MdSelfLink>hdl:1839/" + id + "</cmd:MdSelfLink>\n  </cmd:Header>\n");
+            out.write("  <cmd:Resources>\n    <cmd:ResourceProxyList>\n");
+            for (int j = 0; j < refs.size(); j++) {
+                final String ref = refs.get(j);
+                out.write("      <cmd:ResourceProxy id=\"" + id + "-r" + j + "\">\n");
+                out.write("        <cmd:ResourceType mimetype=\"" + (ref.endsWith(".wav") ? "audio/x-wav" : "text/x-eaf+xml")
+                        + "\">Resource</cmd:ResourceType>\n");
+                out.write("        <cmd:ResourceRef>" + ref + "</cmd:ResourceRef>\n      </cmd:ResourceProxy>\n");
+            }
+            out.write("    </cmd:ResourceProxyList>\n  </cmd:Resources>\n");
+            out.write("  <cmd:Components>\n    <cmdp:Session>\n");
+            out.write("      <cmdp:Name>" + id + "</cmdp:Name>\n");
+            out.write("      <cmdp:Title xml:lang=\"en\">Session " + id + " " + words(rnd, 5) + "</cmdp:Title>\n");
+            out.write("      <cmdp:Date>20" + (10 + rnd.nextInt(15)) + "-0" + (1 + rnd.nextInt(9)) + "-1"
+                    + rnd.nextInt(10) + "</cmdp:Date>\n");
+            out.write("      <cmdp:Description>" + words(rnd, 40) + "</cmdp:Description>\n");
+            out.write("      <cmdp:Actors>\n");
+            final int actors = 2 + rnd.nextInt(6);
+            for (int a = 0; a < actors; a++) {
+                out.write("        <cmdp:Actor id=\"" + id + "-a" + a + "\" role=\""
+                        + (a == 0 ? "interviewer" : "speaker") + "\">\n");
+                out.write("          <cmdp:Name>" + words(rnd, 2) + "</cmdp:Name>\n");
+                out.write("          <cmdp:Age>" + (18 + rnd.nextInt(70)) + "</cmdp:Age>\n");
+                out.write("          <cmdp:Language>" + (rnd.nextBoolean() ? "nld" : "eng") + "</cmdp:Language>\n");
+                out.write("        </cmdp:Actor>\n");
+            }
+            out.write("      </cmdp:Actors>\n");
+            for (int j = 0; j < refs.size(); j++) {
+                out.write("      <cmdp:MediaFile ref=\"" + id + "-r" + j + "\"><cmdp:Size>" + (1024 + rnd.nextInt(1 << 20))
+                        + "</cmdp:Size></cmdp:MediaFile>\n");
+            }
+            out.write("    </cmdp:Session>\n  </cmd:Components>\n</cmd:CMD>\n");
+        }
+    }
+
+    protected void writeJson(final Path file, final int n, final Random rnd) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("[\n");
+            for (int i = 0; i < n; i++) {
+                if (i > 0)
+                    out.write(",\n");
+                out.write("  {\"id\": \"rec" + i + "\", \"title\": \"" + words(rnd, 6) + "\", \"size\": "
+                        + rnd.nextInt(1 << 20) + ", \"public\": " + rnd.nextBoolean()
+                        + ", \"languages\": [\"nld\", \"eng\"], \"note\": null}");
+            }
+            out.write("\n]\n");
+        }
+    }
+
+    private static final String[] WORDS = { "archive", "language", "speech", "corpus", "session", "recording",
+            "annotation", "dialect", "village", "story", "song", "interview", "elicitation", "field", "notes" };
+
+    protected static String words(final Random rnd, final int n) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                sb.append(' ');
+            sb.append(WORDS[rnd.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    protected static void write(final Path file, final String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Remove the corpus from disk.
+     */
+    public void delete() throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path d, final IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Generate a corpus from the command line, e.g., to inspect it.
+     */
+    public static void main(final String[] args) throws IOException {
+        final int n = (args.length > 0 ? Integer.parseInt(args[0]) : 100);
+        final int r = (args.length > 1 ? Integer.parseInt(args[1]) : 4);
+        System.out.println(generate(n, r).getDirectory());
+    }
+}
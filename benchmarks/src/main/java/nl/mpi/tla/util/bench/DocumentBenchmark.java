@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.XdmNode;
+import nl.mpi.tla.util.Saxon;
+import nl.mpi.tla.util.XmlArchiveReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of loading, also from gzip and zip compressed input, parsing
+ * JSON and serializing documents, for corpora of several sizes.
+ *
+ * @author menzowi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DocumentBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int records;
+
+    private Corpus corpus;
+    private List<Path> files;
+    private XdmNode record;
+    private String json;
+    private File out;
+    private File gz;
+    private File zip;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        corpus = Corpus.generate(records, 2);
+        files = corpus.getRecords();
+        record = Saxon.buildDocument(new StreamSource(files.get(0).toFile()));
+        json = new String(Files.readAllBytes(corpus.getJson()), StandardCharsets.UTF_8);
+        out = corpus.getDirectory().resolve("out.xml").toFile();
+        gz = corpus.getDirectory().resolve("record.xml.gz").toFile();
+        try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(gz.toPath()))) {
+            Files.copy(files.get(0), os);
+        }
+        zip = corpus.getDirectory().resolve("records.zip").toFile();
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(zip.toPath()))) {
+            for (final Path file : files) {
+                zos.putNextEntry(new ZipEntry(corpus.getDirectory().relativize(file).toString()));
+                Files.copy(file, zos);
+                zos.closeEntry();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public XdmNode buildDocument() throws Exception {
+        next = (next + 1) % files.size();
+        return Saxon.buildDocument(new StreamSource(files.get(next).toFile()));
+    }
+
+    @Benchmark
+    public XdmNode buildDocumentGzip() throws Exception {
+        return Saxon.buildDocument(new StreamSource(gz));
+    }
+
+    @Benchmark
+    public int readZip() throws Exception {
+        return readZip(1);
+    }
+
+    @Benchmark
+    public int readZipParallel() throws Exception {
+        return readZip(4);
+    }
+
+    private int readZip(final int threads) throws Exception {
+        int n = 0;
+        try (XmlArchiveReader reader = new XmlArchiveReader(zip).setThreads(threads)) {
+            for (final XmlArchiveReader.Entry entry : reader)
+                n += (entry.getDocument() != null ? 1 : 0);
+        }
+        return n;
+    }
+
+    @Benchmark
+    public XdmNode parseJson() throws Exception {
+        return Saxon.parseJson(json);
+    }
+
+    @Benchmark
+    public XdmNode parseJsonStream() throws Exception {
+        return Saxon.parseJson(corpus.getJson());
+    }
+
+    @Benchmark
+    public long parseJsonArray() throws Exception {
+        try (Stream<XdmNode> members = Saxon.parseJsonArray(corpus.getJson())) {
+            return members.count();
+        }
+    }
+
+    @Benchmark
+    public File save() throws Exception {
+        Saxon.save(record.asSource(), out);
+        return out;
+    }
+
+    @Benchmark
+    public String toStringSource() throws Exception {
+        return Saxon.toString(record.asSource());
+    }
+}
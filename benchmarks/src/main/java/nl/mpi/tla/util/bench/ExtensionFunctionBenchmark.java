@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import nl.mpi.tla.util.Saxon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of each sx: and flat: extension function called from XSLT, for
+ * each resource of a sample of the bag.
+ *
+ * @author menzowi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ExtensionFunctionBenchmark {
+
+    /**
+     * The number of resources the stylesheet calls the function for.
+     */
+    static final int SAMPLE = 100;
+
+    @Param({ "fileExists", "checkURL", "uuid", "evaluate", "findBagBase", "findFirstFile", "md5", "fileSize",
+            "hash" })
+    public String function;
+
+    @Param({ "10", "100", "1000" })
+    public int records;
+
+    private Corpus corpus;
+    private XsltExecutable xsl;
+    private XdmNode record;
+    private XdmValue uris;
+
+    static String expression(final String function) {
+        switch (function) {
+        case "fileExists":
+            return "sx:fileExists(xs:anyURI(.))";
+        case "checkURL":
+            return "sx:checkURL(.)";
+        case "uuid":
+            return "sx:uuid(.)";
+        case "evaluate":
+            return "sx:evaluate($doc/*, 'count(.//cmdp:Actor[@role=''speaker''])')";
+        case "findBagBase":
+            return "flat:findBagBase($bag)";
+        case "findFirstFile":
+            return "sx:findFirstFile($bag, tokenize(., '/')[last()])";
+        case "md5":
+            return "sx:md5(xs:anyURI(.))";
+        case "fileSize":
+            return "sx:fileSize(xs:anyURI(.))";
+        case "hash":
+            return "sx:hash(xs:anyURI(.), ('MD5', 'SHA-256'))";
+        default:
+            throw new IllegalArgumentException("unknown function[" + function + "]");
+        }
+    }
+
+    static String stylesheet(final String function) {
+        return "<xsl:stylesheet version=\"3.0\" xmlns:xsl=\"" + StylesheetBenchmark.XSL_NS + "\"\n"
+                + "    xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns:sx=\"java:nl.mpi.tla.saxon\"\n"
+                + "    xmlns:flat=\"java:nl.mpi.tla.flat\" xmlns:cmdp=\"" + Corpus.CMDP_NS + "\"\n"
+                + "    exclude-result-prefixes=\"#all\">\n"
+                + "  <xsl:param name=\"bag\" as=\"xs:string\"/>\n"
+                + "  <xsl:param name=\"uris\" as=\"xs:string*\"/>\n"
+                + "  <xsl:template match=\"/\">\n"
+                + "    <xsl:variable name=\"doc\" select=\".\"/>\n"
+                + "    <result>\n"
+                + "      <xsl:for-each select=\"$uris\">\n"
+                + "        <r><xsl:value-of select=\"" + expression(function).replace("\"", "&quot;") + "\"/></r>\n"
+                + "      </xsl:for-each>\n"
+                + "    </result>\n"
+                + "  </xsl:template>\n"
+                + "</xsl:stylesheet>\n";
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        corpus = Corpus.generate(records, 4);
+        xsl = Saxon.buildTransformer(Saxon.buildDocument(new StreamSource(new StringReader(stylesheet(function)))));
+        record = Saxon.buildDocument(new StreamSource(corpus.getRecords().get(0).toFile()));
+        final List<XdmAtomicValue> list = new ArrayList<>();
+        final List<Path> resources = corpus.getResources();
+        for (int i = 0; i < SAMPLE; i++)
+            list.add(new XdmAtomicValue(resources.get((i * 7919) % resources.size()).toUri().toString()));
+        uris = new XdmValue(list);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public XdmNode call() throws Exception {
+        final XsltTransformer transformer = xsl.load();
+        transformer.setParameter(new QName("bag"), new XdmAtomicValue(corpus.getBag().toString()));
+        transformer.setParameter(new QName("uris"), uris);
+        transformer.setSource(record.asSource());
+        final XdmDestination dest = new XdmDestination();
+        transformer.setDestination(dest);
+        transformer.transform();
+        return dest.getXdmNode();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import nl.mpi.tla.util.Saxon;
+import nl.mpi.tla.util.XdmIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of looking up nodes by id with a tree scan against an XdmIndex.
+ *
+ * @author menzowi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IndexBenchmark {
+
+    @Param({ "8", "512" })
+    public int resources;
+
+    private Corpus corpus;
+    private XdmNode record;
+    private final Map<String, XdmValue> vars = new HashMap<>();
+
+    @Setup
+    public void setup() throws Exception {
+        corpus = Corpus.generate(1, resources);
+        record = Saxon.buildDocument(new StreamSource(corpus.getRecords().get(0).toFile()));
+        vars.put("x", new XdmAtomicValue("rec000000-r" + (resources / 2)));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public XdmItem scan() throws Exception {
+        return Saxon.xpathSingle(record, "//*[@id=$x]", vars);
+    }
+
+    @Benchmark
+    public XdmNode index() throws Exception {
+        return XdmIndex.get(record, "//*[@id]", "@id", null).first("rec000000-r" + (resources / 2));
+    }
+
+    @Benchmark
+    public XdmIndex build() throws Exception {
+        return XdmIndex.build(record, "//*[@id]", "@id", null);
+    }
+}
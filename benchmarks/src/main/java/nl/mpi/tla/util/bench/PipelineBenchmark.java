@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.NullDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import nl.mpi.tla.util.Saxon;
+import nl.mpi.tla.util.SaxonPipeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of a chain of four stylesheets: through files, as a pipeline of
+ * trees and as a streaming pipeline, and a fan-out to two branches.
+ *
+ * @author menzowi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PipelineBenchmark {
+
+    private static final int STAGES = 4;
+
+    private Corpus corpus;
+    private File input;
+    private File tmp;
+    private XsltExecutable[] xsls;
+    private SaxonPipeline trees;
+    private SaxonPipeline streaming;
+    private SaxonPipeline fanOut;
+
+    // copies everything, and counts the stage in an attribute on the root
+    private static XsltExecutable stage(final int i) throws Exception {
+        final String xsl = "<xsl:stylesheet version=\"3.0\" xmlns:xsl=\"" + StylesheetBenchmark.XSL_NS + "\">\n"
+                + "  <xsl:mode on-no-match=\"shallow-copy\"/>\n"
+                + "  <xsl:template match=\"/*\"><xsl:copy><xsl:attribute name=\"stage\" select=\"" + i + "\"/>"
+                + "<xsl:apply-templates select=\"@* except @stage|node()\"/></xsl:copy></xsl:template>\n"
+                + "</xsl:stylesheet>\n";
+        return Saxon.buildTransformer(Saxon.buildDocument(
+                new StreamSource(new ByteArrayInputStream(xsl.getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        corpus = Corpus.generate(1, 64);
+        input = corpus.getRecords().get(0).toFile();
+        tmp = corpus.getDirectory().resolve("stage.xml").toFile();
+        xsls = new XsltExecutable[STAGES];
+        trees = new SaxonPipeline();
+        streaming = new SaxonPipeline().setStreaming(true);
+        for (int i = 0; i < STAGES; i++) {
+            xsls[i] = stage(i);
+            trees.then("stage" + i, xsls[i]);
+            streaming.then("stage" + i, xsls[i]);
+        }
+        fanOut = new SaxonPipeline().then("stage0", xsls[0]).fanOut(
+                new SaxonPipeline().then("stage1", xsls[1]).then("stage2", xsls[2]),
+                new SaxonPipeline().then("stage3", xsls[3]));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public XdmNode files() throws Exception {
+        XdmNode doc = Saxon.buildDocument(new StreamSource(input));
+        for (final XsltExecutable xsl : xsls) {
+            final XsltTransformer t = xsl.load();
+            t.setSource(doc.asSource());
+            t.setDestination(Saxon.getProcessor().newSerializer(tmp));
+            t.transform();
+            doc = Saxon.buildDocument(new StreamSource(tmp));
+        }
+        return doc;
+    }
+
+    @Benchmark
+    public XdmNode pipeline() throws Exception {
+        return trees.transform(new StreamSource(input));
+    }
+
+    @Benchmark
+    public XdmNode pipelineStreaming() throws Exception {
+        return streaming.transform(new StreamSource(input));
+    }
+
+    @Benchmark
+    public SaxonPipeline.Result pipelineFanOut() throws Exception {
+        return fanOut.run(new StreamSource(input), new NullDestination(), new NullDestination());
+    }
+}
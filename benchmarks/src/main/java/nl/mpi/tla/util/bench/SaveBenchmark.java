@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.XdmNode;
+import nl.mpi.tla.util.SaveOptions;
+import nl.mpi.tla.util.Saxon;
+import nl.mpi.tla.util.XmlArchiveWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of Saxon.save, plain and with save options, and of writing the
+ * same documents into a zip file.
+ *
+ * @author menzowi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SaveBenchmark {
+
+    private static final int DOCUMENTS = 16;
+
+    @Param({ "8192", "1048576" })
+    public int bufferSize;
+
+    private Corpus corpus;
+    private XdmNode record;
+    private File out;
+
+    @Setup
+    public void setup() throws Exception {
+        corpus = Corpus.generate(1, 4096);
+        record = Saxon.buildDocument(new StreamSource(corpus.getRecords().get(0).toFile()));
+        out = corpus.getDirectory().resolve("out").toFile();
+        out.mkdirs();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public void plain() throws Exception {
+        for (int i = 0; i < DOCUMENTS; i++)
+            Saxon.save(record, new File(out, i + ".xml"));
+    }
+
+    @Benchmark
+    public void buffered() throws Exception {
+        final SaveOptions options = new SaveOptions().setBufferSize(bufferSize);
+        for (int i = 0; i < DOCUMENTS; i++)
+            Saxon.save(record, new File(out, i + ".xml"), options);
+    }
+
+    @Benchmark
+    public void gzip() throws Exception {
+        final SaveOptions options = SaveOptions.gzip().setBufferSize(bufferSize).setLevel(1);
+        for (int i = 0; i < DOCUMENTS; i++)
+            Saxon.save(record, new File(out, i + ".xml.gz"), options);
+    }
+
+    @Benchmark
+    public int zip() throws Exception {
+        try (XmlArchiveWriter zip = new XmlArchiveWriter(new File(out, "all.zip"),
+                new SaveOptions().setBufferSize(bufferSize).setLevel(1))) {
+            for (int i = 0; i < DOCUMENTS; i++)
+                zip.add(i + ".xml", record);
+            return zip.size();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.XdmNode;
+import nl.mpi.tla.util.Saxon;
+import nl.mpi.tla.util.SimplePath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the Saxon helpers on simple paths, with the fast path and
+ * with compiled (and cached) XPath.
+ *
+ * @author menzowi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SimplePathBenchmark {
+
+    @Param({ "true", "false" })
+    public boolean fast;
+
+    private Corpus corpus;
+    private XdmNode record;
+    private XdmNode root;
+    private final Map<String, String> nss = new HashMap<>();
+
+    @Setup
+    public void setup() throws Exception {
+        corpus = Corpus.generate(1, 8);
+        record = Saxon.buildDocument(new StreamSource(corpus.getRecords().get(0).toFile()));
+        root = (XdmNode) Saxon.xpathSingle(record, "/*");
+        nss.put("cmd", Corpus.CMD_NS);
+        nss.put("cmdp", Corpus.CMDP_NS);
+        SimplePath.setEnabled(fast);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        SimplePath.setEnabled(true);
+        corpus.delete();
+    }
+
+    @Benchmark
+    public boolean hasAttribute() throws Exception {
+        return Saxon.hasAttribute(root, "CMDVersion");
+    }
+
+    @Benchmark
+    public String attribute() throws Exception {
+        return Saxon.xpath2string(root, "@CMDVersion", null, nss);
+    }
+
+    @Benchmark
+    public String childPath() throws Exception {
+        return Saxon.xpath2string(record, "/cmd:CMD/cmd:Header/cmd:MdSelfLink", null, nss);
+    }
+
+    @Benchmark
+    public String attributePath() throws Exception {
+        return Saxon.xpath2string(root, "cmd:Resources/cmd:ResourceProxyList/cmd:ResourceProxy/@id", null, nss);
+    }
+
+    @Benchmark
+    public boolean exists() throws Exception {
+        return Saxon.xpath2boolean(record, "cmd:CMD/cmd:Components/cmdp:Session/cmdp:Name", null, nss);
+    }
+}
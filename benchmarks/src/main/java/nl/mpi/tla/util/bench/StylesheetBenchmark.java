@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.XsltExecutable;
+import nl.mpi.tla.util.Saxon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of stylesheet compilation, from scratch and through the
+ * stylesheet cache of buildTransformer(File).
+ *
+ * @author menzowi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StylesheetBenchmark {
+
+    static final String XSL_NS = "http://www.w3.org/1999/XSL/Transform";
+
+    private Corpus corpus;
+    private File xsl;
+
+    @Setup
+    public void setup() throws Exception {
+        corpus = Corpus.generate(1, 1);
+        final File lib = corpus.getDirectory().resolve("lib.xsl").toFile();
+        Files.write(lib.toPath(), ("<xsl:stylesheet version=\"3.0\" xmlns:xsl=\"" + XSL_NS + "\">\n"
+                + "  <xsl:template match=\"*\" mode=\"copy\"><xsl:copy><xsl:apply-templates select=\"@*|node()\" mode=\"copy\"/></xsl:copy></xsl:template>\n"
+                + "  <xsl:template match=\"@*|text()\" mode=\"copy\"><xsl:copy/></xsl:template>\n"
+                + "</xsl:stylesheet>\n").getBytes(StandardCharsets.UTF_8));
+        xsl = corpus.getDirectory().resolve("main.xsl").toFile();
+        Files.write(xsl.toPath(), ("<xsl:stylesheet version=\"3.0\" xmlns:xsl=\"" + XSL_NS + "\"\n"
+                + "    xmlns:cmd=\"" + Corpus.CMD_NS + "\" xmlns:cmdp=\"" + Corpus.CMDP_NS + "\">\n"
+                + "  <xsl:include href=\"lib.xsl\"/>\n"
+                + "  <xsl:template match=\"/\">\n"
+                + "    <record id=\"{/cmd:CMD/cmd:Header/cmd:MdSelfLink}\">\n"
+                + "      <xsl:for-each select=\"//cmdp:Actor\"><actor role=\"{@role}\"><xsl:value-of select=\"cmdp:Name\"/></actor></xsl:for-each>\n"
+                + "      <xsl:apply-templates select=\"//cmd:Resources\" mode=\"copy\"/>\n"
+                + "    </record>\n"
+                + "  </xsl:template>\n"
+                + "</xsl:stylesheet>\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        corpus.delete();
+    }
+
+    @Benchmark
+    public XsltExecutable compile() throws Exception {
+        return Saxon.buildTransformer(Saxon.buildDocument(new StreamSource(xsl)));
+    }
+
+    @Benchmark
+    public XsltExecutable compileCached() throws Exception {
+        return Saxon.buildTransformer(xsl);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import nl.mpi.tla.util.Saxon;
+import nl.mpi.tla.util.XPathBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of xpathCompile and the xpath* helpers, with and without the
+ * XPath cache.
+ *
+ * @author menzowi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class XPathBenchmark {
+
+    @Param({ "true", "false" })
+    public boolean cache;
+
+    private Corpus corpus;
+    private XdmNode record;
+    private final Map<String, String> nss = new HashMap<>();
+    private final Map<String, XdmValue> vars = new HashMap<>();
+    private XPathBundle bundle;
+
+    private static final String[][] FIELDS = { { "self", "/cmd:CMD/cmd:Header/cmd:MdSelfLink" },
+            { "creator", "/cmd:CMD/cmd:Header/cmd:MdCreator" },
+            { "name", "/cmd:CMD/cmd:Components/cmdp:Session/cmdp:Name" },
+            { "title", "/cmd:CMD/cmd:Components/cmdp:Session/cmdp:Title" },
+            { "date", "/cmd:CMD/cmd:Components/cmdp:Session/cmdp:Date" },
+            { "speakers", "count(//cmdp:Actor[@role=$role])" } };
+
+    @Setup
+    public void setup() throws Exception {
+        corpus = Corpus.generate(1, 8);
+        record = Saxon.buildDocument(new StreamSource(corpus.getRecords().get(0).toFile()));
+        nss.put("cmd", Corpus.CMD_NS);
+        nss.put("cmdp", Corpus.CMDP_NS);
+        vars.put("role", new XdmAtomicValue("speaker"));
+        bundle = new XPathBundle().namespaces(nss).variable("role");
+        for (final String[] field : FIELDS)
+            bundle.add(field[0], field[1]);
+        bundle.compile();
+        Saxon.getXPathCache().setEnabled(cache);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Saxon.getXPathCache().setEnabled(true);
+        corpus.delete();
+    }
+
+    @Benchmark
+    public XPathSelector xpathCompile() throws Exception {
+        return Saxon.xpathCompile(record, "//cmdp:Actor[@role=$role]/cmdp:Name", vars, nss);
+    }
+
+    @Benchmark
+    public XdmValue xpath() throws Exception {
+        return Saxon.xpath(record, "//cmdp:Actor[@role=$role]/cmdp:Name", vars, nss);
+    }
+
+    @Benchmark
+    public Object xpathList() throws Exception {
+        return Saxon.xpathList(record, "//cmd:ResourceProxy/cmd:ResourceRef", null, nss);
+    }
+
+    @Benchmark
+    public long xpathStream() throws Exception {
+        try (Stream<XdmItem> items = Saxon.xpathStream(record, "//cmd:ResourceProxy/cmd:ResourceRef", null, nss)) {
+            return items.filter(i -> i.getStringValue().endsWith(".wav")).count();
+        }
+    }
+
+    @Benchmark
+    public XdmItem xpathSingle() throws Exception {
+        return Saxon.xpathSingle(record, "/cmd:CMD/cmd:Header/cmd:MdSelfLink", null, nss);
+    }
+
+    @Benchmark
+    public String xpath2string() throws Exception {
+        return Saxon.xpath2string(record, "/cmd:CMD/cmd:Components/cmdp:Session/cmdp:Title", null, nss);
+    }
+
+    @Benchmark
+    public StringBuilder xpath2stringAppendable() throws Exception {
+        return Saxon.xpath2string(record, "//text()", null, nss, new StringBuilder());
+    }
+
+    @Benchmark
+    public Map<String, String> fieldsOneByOne() throws Exception {
+        final Map<String, String> res = new HashMap<>();
+        for (final String[] field : FIELDS)
+            res.put(field[0], Saxon.xpath2string(record, field[1], vars, nss));
+        return res;
+    }
+
+    @Benchmark
+    public Map<String, String> fieldsBundle() throws Exception {
+        final XPathBundle.Result values = bundle.evaluate(record, vars);
+        final Map<String, String> res = new HashMap<>();
+        for (final String[] field : FIELDS)
+            res.put(field[0], values.getString(field[0]));
+        return res;
+    }
+
+    @Benchmark
+    public boolean xpath2boolean() throws Exception {
+        return Saxon.xpath2boolean(record, "exists(//cmdp:Actor[@role=$role])", vars, nss);
+    }
+}
@@ -0,0 +1,62 @@
+#!/usr/bin/env bash
+
+#####################################################################################
+# Measure the cold start of tlasaxon, i.e., the wall time of a single small transform
+# in a fresh JVM, without and with an AppCDS archive. The archive is created with
+# src/main/scripts/tlasaxon-cds from a warm-up manifest of the same transform. Run
+# "mvn package" in the parent directory first. For example, to do 20 runs of each:
+#
+#      ./startup.sh 20
+#
+#####################################################################################
+
+SCRIPT_DIR="$( cd "$(dirname "$0")" ; pwd -P )"
+JAR="${SCRIPT_DIR}/../target/tlasaxon.jar"
+SCRIPTS="${SCRIPT_DIR}/../src/main/scripts"
+JAVA="${JAVA_HOME:+${JAVA_HOME}/bin/}java"
+RUNS="${1:-10}"
+
+if ! [ -f "${JAR}" ]; then
+	echo "tlasaxon jar ${JAR} not found, run \"mvn package\" in the parent directory first"
+	exit 1
+fi
+
+WORK="$(mktemp -d -t tlasaxon-startup.XXXXXX)"
+trap 'rm -rf "${WORK}"' EXIT
+
+cp "${JAR}" "${WORK}/tlasaxon.jar"
+cat > "${WORK}/in.xml" <<XML
+<records><record id="1"><title>one</title></record><record id="2"><title>two</title></record></records>
+XML
+cat > "${WORK}/style.xsl" <<XSL
+<xsl:stylesheet version="3.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+  <xsl:template match="/">
+    <titles count="{count(//record)}">
+      <xsl:for-each select="//record"><title id="{@id}"><xsl:value-of select="upper-case(title)"/></title></xsl:for-each>
+    </titles>
+  </xsl:template>
+</xsl:stylesheet>
+XSL
+cat > "${WORK}/warmup.txt" <<TXT
+xsl style.xsl in.xml
+xpath in.xml string-join(//title, ',')
+TXT
+
+# print the median wall time, in ms, of RUNS transforms
+measure() {
+	local times=()
+	for i in $(seq "${RUNS}"); do
+		local start=$(date +%s%N)
+		"$@" -s:"${WORK}/in.xml" -xsl:"${WORK}/style.xsl" -o:"${WORK}/out.xml" > /dev/null 2>&1 || { echo "transform failed"; exit 1; }
+		local end=$(date +%s%N)
+		times+=($(( (end - start) / 1000000 )))
+	done
+	printf "%s\n" "${times[@]}" | sort -n | awk '{ t[NR] = $1 } END { print t[int((NR + 1) / 2)] }'
+}
+
+BASE=$(measure "${JAVA}" -Xshare:auto -jar "${WORK}/tlasaxon.jar")
+echo "cold start without archive: ${BASE}ms (median of ${RUNS})"
+
+TLASAXON_JAR="${WORK}/tlasaxon.jar" "${SCRIPTS}/tlasaxon-cds" "${WORK}/warmup.txt" > /dev/null || exit 1
+CDS=$(measure env TLASAXON_JAR="${WORK}/tlasaxon.jar" "${SCRIPTS}/tlasaxon")
+echo "cold start with archive:    ${CDS}ms (median of ${RUNS})"
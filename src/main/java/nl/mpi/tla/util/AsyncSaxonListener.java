@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * A SaxonListener that hands the messages, which passed the level check, to
+ * a bounded queue drained by a single background thread, so the transform
+ * doesn't wait for the log appenders. Errors and warnings wait for room in
+ * the queue, info and debug messages are dropped, and counted, when the
+ * queue is full. Optionally repeated identical messages are collapsed into
+ * a single message with a count. When the JVM exits the messages still
+ * queued are written, waiting at most SHUTDOWN_TIMEOUT milliseconds.
+ *
+ * @author menzowi
+ */
+public class AsyncSaxonListener extends SaxonListener {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncSaxonListener.class.getName());
+
+    /**
+     * System property with the capacity of the queue, defaults to 8192.
+     */
+    public static final String QUEUE_PROPERTY = "nl.mpi.tla.saxon.listener.queue";
+
+    /**
+     * How long the shutdown hook waits for the queued messages.
+     */
+    public static final long SHUTDOWN_TIMEOUT = 5000;
+
+    protected boolean collapse = false;
+
+    // the last message and how often it was repeated since
+    private Level lastLevel = null;
+    private String lastLoc = null;
+    private String lastText = null;
+    private Throwable lastCause = null;
+    private int repeated = 0;
+
+    public AsyncSaxonListener() {
+        super();
+    }
+
+    public AsyncSaxonListener(Logger logger, String type, String mdc, String id) {
+        super(logger, type, mdc, id);
+    }
+
+    public AsyncSaxonListener(String type, String mdc, String id) {
+        super(type, mdc, id);
+    }
+
+    public AsyncSaxonListener(String type, String mdc, String id, boolean collapse) {
+        super(type, mdc, id);
+        this.collapse = collapse;
+    }
+
+    /**
+     * Collapse repeated identical messages into a counted summary.
+     */
+    public void setCollapse(boolean collapse) {
+        this.collapse = collapse;
+    }
+
+    public boolean getCollapse() {
+        return collapse;
+    }
+
+    @Override
+    protected void log(Level level, String loc, String text, Throwable e) {
+        if (!collapse) {
+            enqueue(level, loc, text, e, 0);
+            return;
+        }
+        synchronized (this) {
+            if (level == lastLevel && e == null && lastCause == null && text.equals(lastText)
+                    && (loc == null ? lastLoc == null : loc.equals(lastLoc))) {
+                repeated++;
+                return;
+            }
+            flushRepeated();
+            enqueue(level, loc, text, e, 0);
+            lastLevel = level;
+            lastLoc = loc;
+            lastText = text;
+            lastCause = e;
+        }
+    }
+
+    // emit the summary of the repeats of the last message
+    private void flushRepeated() {
+        if (repeated > 0)
+            enqueue(lastLevel, lastLoc, lastText, null, repeated);
+        repeated = 0;
+    }
+
+    /**
+     * Emit the summary of any pending repeated messages.
+     */
+    @Override
+    public synchronized void close() {
+        flushRepeated();
+        lastLevel = null;
+        lastLoc = null;
+        lastText = null;
+        lastCause = null;
+    }
+
+    protected void enqueue(Level level, String loc, String text, Throwable e, int repeats) {
+        String ident = id;
+        if (ident == null)
+            ident = MDC.get(mdc);
+        Dispatcher.get().submit(new Event(this, level, loc, text, e, repeats, ident));
+    }
+
+    /**
+     * Wait until all messages queued so far have been written.
+     *
+     * @param timeout The maximum time to wait in milliseconds
+     * @return false if the timeout passed first
+     */
+    public static boolean flush(long timeout) throws InterruptedException {
+        return Dispatcher.get().flush(timeout);
+    }
+
+    /**
+     * Get the number of info and debug messages dropped because the queue
+     * was full.
+     */
+    public static long getDropped() {
+        return Dispatcher.get().dropped.get();
+    }
+
+    private static final class Event {
+        final AsyncSaxonListener listener;
+        final Level level;
+        final String loc;
+        final String text;
+        final Throwable cause;
+        final int repeats;
+        final String id;
+
+        Event(AsyncSaxonListener listener, Level level, String loc, String text, Throwable cause, int repeats,
+                String id) {
+            this.listener = listener;
+            this.level = level;
+            this.loc = loc;
+            this.text = text;
+            this.cause = cause;
+            this.repeats = repeats;
+            this.id = id;
+        }
+    }
+
+    private static final class Dispatcher implements Runnable {
+
+        private static volatile Dispatcher instance = null;
+
+        private final BlockingQueue<Event> queue;
+        private final AtomicLong dropped = new AtomicLong();
+        private long submitted = 0;
+        private long written = 0;
+
+        private Dispatcher(int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+            final Thread thread = new Thread(this, "SaxonListener-dispatcher");
+            thread.setDaemon(true);
+            thread.start();
+            // the thread is a daemon, so drain the queue before the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    if (!flush(SHUTDOWN_TIMEOUT))
+                        System.err.println("WRN: not all Saxon messages were written before exit");
+                } catch (InterruptedException e) {
+                    // exiting anyway
+                }
+            }, "SaxonListener-shutdown"));
+        }
+
+        static Dispatcher get() {
+            Dispatcher d = instance;
+            if (d == null) {
+                synchronized (Dispatcher.class) {
+                    d = instance;
+                    if (d == null) {
+                        d = new Dispatcher(Math.max(1, Integer.getInteger(QUEUE_PROPERTY, 8192)));
+                        instance = d;
+                    }
+                }
+            }
+            return d;
+        }
+
+        void submit(Event event) {
+            synchronized (this) {
+                submitted++;
+            }
+            boolean queued;
+            if (event.level == Level.ERROR || event.level == Level.WARN) {
+                try {
+                    queue.put(event);
+                    queued = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    queued = false;
+                }
+            } else
+                queued = queue.offer(event);
+            if (!queued) {
+                dropped.incrementAndGet();
+                done();
+            }
+        }
+
+        synchronized void done() {
+            written++;
+            if (written >= submitted)
+                notifyAll();
+        }
+
+        synchronized boolean flush(long timeout) throws InterruptedException {
+            final long target = submitted;
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (written < target) {
+                final long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    return false;
+                wait(wait);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            long reported = 0;
+            while (true) {
+                try {
+                    final Event event = queue.poll(1, TimeUnit.SECONDS);
+                    final long d = dropped.get();
+                    if (d > reported) {
+                        log.warn("dropped " + (d - reported) + " Saxon messages, the queue was full");
+                        reported = d;
+                    }
+                    if (event == null)
+                        continue;
+                    write(event);
+                    done();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("couldn't write Saxon message: " + e, e);
+                    done();
+                }
+            }
+        }
+
+        private void write(Event event) {
+            final AsyncSaxonListener l = event.listener;
+            final String prev = MDC.get(l.mdc);
+            if (event.id != null)
+                MDC.put(l.mdc, event.id);
+            try {
+                l.write(event.level, event.loc,
+                        (event.repeats > 0 ? event.text + " (repeated " + event.repeats + " times)" : event.text),
+                        event.cause);
+            } finally {
+                if (prev != null)
+                    MDC.put(l.mdc, prev);
+                else
+                    MDC.remove(l.mdc);
+            }
+        }
+    }
+}
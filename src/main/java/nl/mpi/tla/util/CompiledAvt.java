@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An Attribute Value Template parsed once into its literal parts and
+ * compiled XPath parts, so it can be evaluated against many context items.
+ * A CompiledAvt is immutable and can be shared by threads.
+ *
+ * @author menzowi
+ */
+public class CompiledAvt {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompiledAvt.class.getName());
+
+    private final String avt;
+
+    private final List<Part> parts = new ArrayList<>();
+
+    private final boolean matched;
+
+    /**
+     * Compile an AVT, unescaping {{ and }}.
+     *
+     * @param avt The template
+     * @param vars The names of the variables the template may refer to
+     * @param nss The namespace prefix to URI mapping
+     * @throws SaxonApiException
+     */
+    public CompiledAvt(final String avt, final Collection<String> vars, final Map<String, String> nss)
+            throws SaxonApiException {
+        this(avt, vars, nss, true);
+    }
+
+    public CompiledAvt(final String avt, final Collection<String> vars, final Map<String, String> nss,
+            final boolean unescape) throws SaxonApiException {
+        this.avt = avt;
+        final Matcher AVTMatcher = Saxon.AVTPattern.matcher(avt);
+        int start = 0;
+        while (AVTMatcher.find()) {
+            if (start < AVTMatcher.start())
+                parts.add(new Part(avt.substring(start, AVTMatcher.start())));
+            final String grp = AVTMatcher.group();
+            if (grp.startsWith("{{") && grp.endsWith("}}")) {
+                if (unescape)
+                    parts.add(new Part(grp.substring(1, grp.length() - 1)));
+                else
+                    parts.add(new Part(grp));
+            } else {
+                final String xp = grp.substring(1, grp.length() - 1);
+                try {
+                    parts.add(new Part(xp, Saxon.getXPathCache().compile(xp, vars, nss)));
+                } catch (final SaxonApiException e) {
+                    logger.error("avt[" + avt + "] failed: " + e, e);
+                    throw e;
+                }
+            }
+            start = AVTMatcher.end();
+        }
+        if (start < avt.length())
+            parts.add(new Part(avt.substring(start, avt.length())));
+        this.matched = (start > 0);
+    }
+
+    public String getTemplate() {
+        return avt;
+    }
+
+    /**
+     * Evaluate the AVT and append the result to a sink.
+     *
+     * @param out The sink
+     * @param ctxt The context item
+     * @param vars The variable values
+     * @return The sink
+     * @throws SaxonApiException
+     * @throws IOException
+     */
+    public <A extends Appendable> A appendTo(final A out, final XdmItem ctxt, final Map<String, XdmValue> vars)
+            throws SaxonApiException, IOException {
+        for (final Part part : parts) {
+            if (part.xpe == null) {
+                out.append(part.text);
+                continue;
+            }
+            try {
+                final XPathSelector xps = part.xpe.load();
+                xps.setContextItem(ctxt);
+                if (vars != null) {
+                    for (final Map.Entry<String, XdmValue> var : vars.entrySet()) {
+                        xps.setVariable(new QName(var.getKey()), var.getValue());
+                    }
+                }
+                for (final XdmItem item : xps) {
+                    out.append(item.getStringValue());
+                }
+            } catch (final SaxonApiException e) {
+                logger.error("avt[" + avt + "] failed: " + e, e);
+                throw e;
+            }
+        }
+        return out;
+    }
+
+    public StringBuilder appendTo(final StringBuilder out, final XdmItem ctxt, final Map<String, XdmValue> vars)
+            throws SaxonApiException {
+        try {
+            appendTo((Appendable) out, ctxt, vars);
+            return out;
+        } catch (final IOException e) {
+            // a StringBuilder doesn't throw IOExceptions
+            throw new SaxonApiException(e);
+        }
+    }
+
+    public String evaluate(final XdmItem ctxt, final Map<String, XdmValue> vars) throws SaxonApiException {
+        final String res = appendTo(new StringBuilder(), ctxt, vars).toString();
+        if (matched)
+            logger.debug("AVT result[" + res + "]");
+        return res;
+    }
+
+    public String evaluate(final XdmItem ctxt) throws SaxonApiException {
+        return evaluate(ctxt, null);
+    }
+
+    /**
+     * Evaluate the AVT for a sequence of context items.
+     *
+     * @param ctxts The context items
+     * @param vars The variable values, shared by all evaluations
+     * @return The results in the order of the context items
+     * @throws SaxonApiException
+     */
+    public List<String> evaluateAll(final Iterable<? extends XdmItem> ctxts, final Map<String, XdmValue> vars)
+            throws SaxonApiException {
+        final List<String> res = new ArrayList<>();
+        final StringBuilder buf = new StringBuilder();
+        for (final XdmItem ctxt : ctxts) {
+            buf.setLength(0);
+            res.add(appendTo(buf, ctxt, vars).toString());
+        }
+        return Collections.unmodifiableList(res);
+    }
+
+    @Override
+    public String toString() {
+        return avt;
+    }
+
+    // either a literal text or a compiled XPath expression
+    private static final class Part {
+        private final String text;
+        private final XPathExecutable xpe;
+
+        Part(final String text) {
+            this.text = text;
+            this.xpe = null;
+        }
+
+        Part(final String text, final XPathExecutable xpe) {
+            this.text = text;
+            this.xpe = xpe;
+        }
+    }
+}
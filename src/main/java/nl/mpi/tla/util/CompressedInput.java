@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.SaxonApiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recognizes gzip and zip compressed input by its magic bytes, so it can be
+ * parsed from a decompressing stream, whatever its name. A zip is expected to
+ * hold a single document, the first file entry is used; to read all entries
+ * use an XmlArchiveReader.
+ *
+ * @author menzowi
+ */
+public final class CompressedInput {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompressedInput.class.getName());
+
+    public static final String ENABLED_PROPERTY = "nl.mpi.tla.saxon.decompress";
+
+    private static volatile boolean enabled = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CompressedInput() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn the detection of compressed input in buildDocument on or off.
+     */
+    public static void setEnabled(final boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * A source whose stream was opened here, and should be closed after
+     * parsing.
+     */
+    static final class OpenedSource extends StreamSource {
+        OpenedSource(final InputStream in, final String systemId) {
+            super(in, systemId);
+        }
+    }
+
+    public static boolean isGzip(final byte[] magic, final int n) {
+        return n >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B;
+    }
+
+    public static boolean isZip(final byte[] magic, final int n) {
+        return n >= 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+    }
+
+    // read the first bytes without consuming them
+    private static int peek(final InputStream in, final byte[] magic) throws IOException {
+        in.mark(magic.length);
+        try {
+            int n = 0;
+            while (n < magic.length) {
+                final int r = in.read(magic, n, magic.length - n);
+                if (r < 0)
+                    break;
+                n += r;
+            }
+            return n;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Wrap a stream so it's decompressed if its content is gzip or zip
+     * compressed.
+     */
+    public static InputStream decompress(final InputStream stream) throws IOException {
+        final InputStream in = (stream.markSupported() ? stream : new BufferedInputStream(stream, BUFFER_SIZE));
+        final byte[] magic = new byte[4];
+        final int n = peek(in, magic);
+        if (isGzip(magic, n))
+            return new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+        if (isZip(magic, n)) {
+            final ZipInputStream zip = new ZipInputStream(in);
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                if (!entry.isDirectory())
+                    return new BufferedInputStream(zip, BUFFER_SIZE);
+            }
+            zip.close();
+            throw new IOException("zip contains no file entry");
+        }
+        return in;
+    }
+
+    /**
+     * Replace a stream source of compressed content by one of the
+     * decompressed content with the same system id. Other sources, and
+     * uncompressed files, are returned as is.
+     */
+    public static Source detect(final Source src) throws SaxonApiException {
+        if (!enabled || !(src instanceof StreamSource))
+            return src;
+        final StreamSource ss = (StreamSource) src;
+        if (ss.getReader() != null)
+            return src;
+        try {
+            if (ss.getInputStream() != null) {
+                final StreamSource res = new StreamSource(decompress(ss.getInputStream()), ss.getSystemId());
+                res.setPublicId(ss.getPublicId());
+                return res;
+            }
+            final File file = file(ss.getSystemId());
+            if (file == null || !file.isFile())
+                return src;
+            final InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            try {
+                final byte[] magic = new byte[4];
+                final int n = peek(in, magic);
+                if (!isGzip(magic, n) && !isZip(magic, n)) {
+                    in.close();
+                    return src; // let the parser open it as usual
+                }
+                logger.debug("decompressing[" + ss.getSystemId() + "]");
+                final OpenedSource res = new OpenedSource(decompress(in), ss.getSystemId());
+                res.setPublicId(ss.getPublicId());
+                return res;
+            } catch (final IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+        } catch (final IOException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    private static File file(final String systemId) {
+        if (systemId == null)
+            return null;
+        try {
+            final URI uri = URI.create(systemId);
+            if ("file".equals(uri.getScheme()))
+                return new File(uri);
+        } catch (final IllegalArgumentException e) {
+            // not a file URI
+        }
+        return null;
+    }
+
+    /**
+     * Close the stream of a source returned by detect(), if it was opened
+     * there.
+     */
+    public static void close(final Source src) {
+        if (src instanceof OpenedSource) {
+            try {
+                ((OpenedSource) src).getInputStream().close();
+            } catch (final IOException e) {
+                logger.debug("couldn't close[" + src.getSystemId() + "]: " + e);
+            }
+        }
+    }
+}
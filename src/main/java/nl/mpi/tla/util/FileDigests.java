@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compute content digests of files, several algorithms in a single pass
+ * over the file. Digests are cached by path, size and modification time,
+ * and optionally kept in a persistent store so later runs skip files that
+ * haven't changed. The in-memory cache is bounded, the least recently used
+ * files are dropped first; the digests of the persistent store are all kept
+ * and consulted when a file isn't cached.
+ *
+ * @author menzowi
+ */
+public class FileDigests {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileDigests.class.getName());
+
+    /**
+     * System property pointing to the persistent digest store of the shared
+     * instance.
+     */
+    public static final String STORE_PROPERTY = "nl.mpi.tla.saxon.digests";
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static volatile FileDigests instance = null;
+
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, FileDigests.Entry> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    // the digests of the persistent store by path, not bounded, as each of
+    // them is in the store anyway
+    private final ConcurrentHashMap<String, Entry> stored = new ConcurrentHashMap<>();
+
+    private volatile File store = null;
+
+    private Writer storeWriter = null;
+
+    /**
+     * Get the shared instance, which uses the store the STORE_PROPERTY system
+     * property points to, if any.
+     */
+    public static FileDigests getInstance() {
+        FileDigests fd = instance;
+        if (fd == null) {
+            synchronized (FileDigests.class) {
+                fd = instance;
+                if (fd == null) {
+                    fd = new FileDigests();
+                    final String store = System.getProperty(STORE_PROPERTY);
+                    if (store != null && !store.trim().isEmpty()) {
+                        try {
+                            fd.setStore(new File(store));
+                        } catch (final IOException e) {
+                            logger.error("couldn't open the digest store[" + store + "]: " + e, e);
+                        }
+                    }
+                    instance = fd;
+                }
+            }
+        }
+        return fd;
+    }
+
+    /**
+     * Map the usual spellings, e.g., md5, sha256 or SHA-256, to the JCA
+     * algorithm name.
+     */
+    public static String normalize(final String algorithm) {
+        final String alg = algorithm.trim().toUpperCase(Locale.ROOT);
+        if (alg.startsWith("SHA") && !alg.startsWith("SHA-") && !alg.startsWith("SHA3"))
+            return "SHA-" + alg.substring(3);
+        return alg;
+    }
+
+    /**
+     * Compute the digest of a file.
+     *
+     * @param path The file
+     * @param algorithm The algorithm, e.g., MD5 or SHA-256
+     * @return The lowercase hex digest
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public String digest(final Path path, final String algorithm) throws IOException, NoSuchAlgorithmException {
+        return digests(path, Collections.singletonList(algorithm)).get(0);
+    }
+
+    /**
+     * Compute several digests of a file, reading it at most once.
+     *
+     * @param path The file
+     * @param algorithms The algorithms
+     * @return The lowercase hex digests, keyed and ordered by the requested
+     *         algorithms; a repeated algorithm is listed once
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public Map<String, String> digest(final Path path, final List<String> algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        final List<String> digests = digests(path, algorithms);
+        final Map<String, String> res = new LinkedHashMap<>();
+        for (int i = 0; i < digests.size(); i++)
+            res.put(algorithms.get(i), digests.get(i));
+        return res;
+    }
+
+    /**
+     * Compute several digests of a file, reading it at most once.
+     *
+     * @param path The file
+     * @param algorithms The algorithms
+     * @return The lowercase hex digests, one for each requested algorithm in
+     *         the same order, also when an algorithm is repeated or spelled
+     *         differently
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public List<String> digests(final Path path, final List<String> algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        final Path file = path.toAbsolutePath().normalize();
+        final BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+        final long size = attr.size();
+        final long mtime = attr.lastModifiedTime().toMillis();
+        final String key = file.toString();
+        final Entry entry = getEntry(key, size, mtime);
+        final List<String> missing = new ArrayList<>();
+        for (final String algorithm : algorithms) {
+            final String alg = normalize(algorithm);
+            if (!entry.digests.containsKey(alg) && !missing.contains(alg))
+                missing.add(alg);
+        }
+        if (!missing.isEmpty()) {
+            final Map<String, String> computed = compute(file, missing);
+            entry.digests.putAll(computed);
+            persist(key, size, mtime, computed);
+        }
+        final List<String> res = new ArrayList<>(algorithms.size());
+        for (final String algorithm : algorithms)
+            res.add(entry.digests.get(normalize(algorithm)));
+        return res;
+    }
+
+    // get the cached or stored digests of a file, or a fresh entry if it
+    // changed
+    private Entry getEntry(final String path, final long size, final long mtime) {
+        synchronized (cache) {
+            Entry entry = cache.get(path);
+            if (entry == null || !entry.matches(size, mtime)) {
+                entry = stored.get(path);
+                if (entry == null || !entry.matches(size, mtime)) {
+                    entry = new Entry(size, mtime);
+                    if (store != null)
+                        stored.put(path, entry);
+                }
+                cache.put(path, entry);
+            }
+            return entry;
+        }
+    }
+
+    // read the file once through a channel and feed all digests
+    protected static Map<String, String> compute(final Path file, final List<String> algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        final MessageDigest[] mds = new MessageDigest[algorithms.size()];
+        for (int i = 0; i < mds.length; i++)
+            mds[i] = MessageDigest.getInstance(algorithms.get(i));
+        final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buf) != -1) {
+                buf.flip();
+                final int limit = buf.limit();
+                for (final MessageDigest md : mds) {
+                    buf.position(0).limit(limit);
+                    md.update(buf);
+                }
+                buf.clear();
+            }
+        }
+        final Map<String, String> res = new LinkedHashMap<>();
+        for (int i = 0; i < mds.length; i++)
+            res.put(algorithms.get(i), hex(mds[i].digest()));
+        return res;
+    }
+
+    protected static String hex(final byte[] bytes) {
+        final char[] res = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            res[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            res[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(res);
+    }
+
+    /**
+     * Load, and from now on append to, a persistent digest store. Each line
+     * holds the size, modification time, algorithm, digest and path of a
+     * file, separated by tabs. Later lines win, and the store is compacted
+     * when it holds outdated or duplicate lines.
+     */
+    public synchronized void setStore(final File store) throws IOException {
+        close();
+        stored.clear();
+        if (store.exists()) {
+            int n = 0;
+            try (BufferedReader in = Files.newBufferedReader(store.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    final String[] fields = line.split("\t", 5);
+                    if (fields.length != 5)
+                        continue;
+                    try {
+                        final long size = Long.parseLong(fields[0]);
+                        final long mtime = Long.parseLong(fields[1]);
+                        Entry entry = stored.get(fields[4]);
+                        if (entry == null || !entry.matches(size, mtime)) {
+                            entry = new Entry(size, mtime);
+                            stored.put(fields[4], entry);
+                        }
+                        entry.digests.put(fields[2], fields[3]);
+                        n++;
+                    } catch (final NumberFormatException e) {
+                        logger.warn("skipped invalid line in digest store[" + store + "]: " + line);
+                    }
+                }
+            }
+            logger.debug("loaded " + n + " digests from store[" + store + "]");
+            int m = 0;
+            for (final Entry entry : stored.values())
+                m += entry.digests.size();
+            if (m < n)
+                compact(store);
+        }
+        this.store = store;
+        this.storeWriter = new OutputStreamWriter(new FileOutputStream(store, true), StandardCharsets.UTF_8);
+    }
+
+    // rewrite the store with only the current digests
+    private void compact(final File store) throws IOException {
+        final Path tmp = store.toPath().resolveSibling("." + store.getName() + ".part");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (final Map.Entry<String, Entry> entry : stored.entrySet())
+                write(out, entry.getKey(), entry.getValue().size, entry.getValue().mtime, entry.getValue().digests);
+        }
+        Files.move(tmp, store.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("compacted digest store[" + store + "]");
+    }
+
+    private static void write(final Writer out, final String path, final long size, final long mtime,
+            final Map<String, String> digests) throws IOException {
+        for (final Map.Entry<String, String> digest : digests.entrySet())
+            out.write(size + "\t" + mtime + "\t" + digest.getKey() + "\t" + digest.getValue() + "\t" + path + "\n");
+    }
+
+    public synchronized File getStore() {
+        return store;
+    }
+
+    protected synchronized void persist(final String path, final long size, final long mtime,
+            final Map<String, String> digests) {
+        if (storeWriter == null)
+            return;
+        try {
+            write(storeWriter, path, size, mtime, digests);
+            storeWriter.flush();
+        } catch (final IOException e) {
+            logger.error("couldn't write to digest store[" + store + "]: " + e, e);
+        }
+    }
+
+    public synchronized void close() {
+        if (storeWriter != null) {
+            try {
+                storeWriter.close();
+            } catch (final IOException e) {
+                logger.warn("couldn't close digest store[" + store + "]: " + e, e);
+            }
+        }
+        storeWriter = null;
+        store = null;
+        stored.clear();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Resize the in-memory cache, the least recently used files are dropped
+     * when the cache shrinks. The persistent store isn't affected.
+     */
+    public void setMaxSize(final int maxSize) {
+        synchronized (cache) {
+            this.maxSize = maxSize;
+            final Iterator<String> iter = cache.keySet().iterator();
+            while (cache.size() > Math.max(maxSize, 0) && iter.hasNext()) {
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final long mtime;
+        private final Map<String, String> digests = new ConcurrentHashMap<>();
+
+        Entry(final long size, final long mtime) {
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        boolean matches(final long size, final long mtime) {
+            return this.size == size && this.mtime == mtime;
+        }
+    }
+}
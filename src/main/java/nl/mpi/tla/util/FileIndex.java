@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index of the file names below a root directory, to answer
+ * repeated suffix lookups without walking the tree again. The index is
+ * built once by a parallel walk and rebuilt when the modification time of
+ * one of its directories changes. Entries are kept in depth-first order
+ * with the children of a directory sorted by name, so lookups are
+ * deterministic.
+ *
+ * @author menzowi
+ */
+public class FileIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileIndex.class.getName());
+
+    /* Registry of indexes */
+
+    private static int maxRoots = 16;
+
+    private static volatile int maxEntries = 1000000;
+
+    private static volatile long checkInterval = 2000;
+
+    private static final LinkedHashMap<Path, FileIndex> indexes = new LinkedHashMap<Path, FileIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Path, FileIndex> eldest) {
+            return size() > maxRoots;
+        }
+    };
+
+    /**
+     * Find the first path, in index order, below the root that ends with the
+     * suffix. Falls back to walking the tree when the tree is too large to
+     * index.
+     *
+     * @param root The root directory
+     * @param suffix The suffix
+     * @return The path, if any
+     * @throws IOException
+     */
+    public static Optional<Path> findFirst(final Path root, final String suffix) throws IOException {
+        final FileIndex index = forRoot(root);
+        if (index != null)
+            return index.find(suffix);
+        logger.debug("tree[" + root + "] is too large to index, walking it");
+        try (Stream<Path> stream = Files.find(root, Integer.MAX_VALUE, new BiPredicate<Path, BasicFileAttributes>() {
+            @Override
+            public boolean test(Path path, BasicFileAttributes attr) {
+                return path.toString().endsWith(suffix);
+            }
+        })) {
+            return stream.min(INDEX_ORDER);
+        }
+    }
+
+    /**
+     * The order of the index, i.e., depth-first with the children of a
+     * directory sorted by name, which differs from the order of the path
+     * strings, e.g., a/b comes before a-c.
+     */
+    public static final Comparator<Path> INDEX_ORDER = (a, b) -> {
+        final int n = Math.min(a.getNameCount(), b.getNameCount());
+        for (int i = 0; i < n; i++) {
+            final int c = a.getName(i).toString().compareTo(b.getName(i).toString());
+            if (c != 0)
+                return c;
+        }
+        return Integer.compare(a.getNameCount(), b.getNameCount());
+    };
+
+    /**
+     * Get the, up to date, index of a root directory.
+     *
+     * @param root The root directory
+     * @return The index, or null if the tree has more than the maximum number
+     *         of entries
+     * @throws IOException
+     */
+    public static FileIndex forRoot(final Path root) throws IOException {
+        FileIndex index;
+        synchronized (indexes) {
+            index = indexes.get(root);
+        }
+        if (index != null && !index.isStale())
+            return index;
+        // rebuild, serialized per root so concurrent callers share the walk
+        synchronized (lock(root)) {
+            synchronized (indexes) {
+                index = indexes.get(root);
+            }
+            if (index != null && !index.isStale())
+                return index;
+            index = build(root);
+            synchronized (indexes) {
+                if (index != null)
+                    indexes.put(root, index);
+                else
+                    indexes.remove(root);
+            }
+        }
+        return index;
+    }
+
+    private static final Map<Path, Object> locks = Collections.synchronizedMap(new WeakHashMap<Path, Object>());
+
+    private static Object lock(final Path root) {
+        synchronized (locks) {
+            Object lock = locks.get(root);
+            if (lock == null) {
+                lock = new Object();
+                locks.put(root, lock);
+            }
+            return lock;
+        }
+    }
+
+    public static void setMaxRoots(final int max) {
+        synchronized (indexes) {
+            maxRoots = max;
+            final Iterator<Path> iter = indexes.keySet().iterator();
+            while (indexes.size() > Math.max(max, 0) && iter.hasNext()) {
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Set the maximum number of entries an index can have, larger trees are
+     * not indexed.
+     */
+    public static void setMaxEntries(final int max) {
+        maxEntries = max;
+    }
+
+    /**
+     * Set the minimum number of milliseconds between checks of the
+     * directory modification times.
+     */
+    public static void setCheckInterval(final long interval) {
+        checkInterval = interval;
+    }
+
+    public static void clear() {
+        synchronized (indexes) {
+            indexes.clear();
+        }
+    }
+
+    /* A single index */
+
+    private final Path root;
+
+    // entry i has name names[i] and its parent directory is entry parents[i], the root is entry 0
+    private final String[] names;
+    private final int[] parents;
+
+    // all names reversed and sorted, to answer suffix lookups by binary search
+    private final String[] reversed;
+    private final int[] reversedEntry;
+
+    // the directories and their modification time when indexed
+    private final Path[] dirs;
+    private final long[] mtimes;
+
+    private volatile long checked;
+
+    private FileIndex(final Path root, final List<Node> entries, final List<Node> directories) {
+        this.root = root;
+        final int n = entries.size();
+        this.names = new String[n];
+        this.parents = new int[n];
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            final Node node = entries.get(i);
+            names[i] = node.name;
+            parents[i] = node.parent;
+            order[i] = i;
+        }
+        final String[] rev = new String[n];
+        for (int i = 0; i < n; i++)
+            rev[i] = new StringBuilder(names[i]).reverse().toString();
+        Arrays.sort(order, (a, b) -> {
+            final int c = rev[a].compareTo(rev[b]);
+            return (c != 0 ? c : Integer.compare(a, b));
+        });
+        this.reversed = new String[n];
+        this.reversedEntry = new int[n];
+        for (int i = 0; i < n; i++) {
+            reversed[i] = rev[order[i]];
+            reversedEntry[i] = order[i];
+        }
+        this.dirs = new Path[directories.size()];
+        this.mtimes = new long[directories.size()];
+        for (int i = 0; i < dirs.length; i++) {
+            dirs[i] = directories.get(i).path;
+            mtimes[i] = directories.get(i).mtime;
+        }
+        this.checked = System.currentTimeMillis();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Estimate the memory used by this index in bytes.
+     */
+    public long getMemoryUsage() {
+        long bytes = 0;
+        for (final String name : names)
+            bytes += 2 * (40 + 2L * name.length()); // the name and its reverse
+        bytes += 3 * 4L * names.length + 2 * 16L * names.length;
+        bytes += dirs.length * (8L + 8L + 64L);
+        return bytes;
+    }
+
+    /**
+     * Get the path of an entry.
+     */
+    protected Path path(final int entry) {
+        if (entry == 0)
+            return root;
+        return path(parents[entry]).resolve(names[entry]);
+    }
+
+    /**
+     * Find the first path, in index order, that ends with the suffix, like
+     * path.toString().endsWith(suffix).
+     */
+    public Optional<Path> find(final String suffix) {
+        int first = Integer.MAX_VALUE;
+        final int sep = suffix.lastIndexOf(File.separatorChar);
+        if (root.toString().endsWith(suffix))
+            first = 0;
+        // the last part of the suffix should match the end of the name
+        final String tail = new StringBuilder(suffix.substring(sep + 1)).reverse().toString();
+        int lo = 0;
+        int hi = reversed.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (reversed[mid].compareTo(tail) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        for (int i = lo; i < reversed.length && reversed[i].startsWith(tail); i++) {
+            final int entry = reversedEntry[i];
+            if (entry >= first || entry == 0)
+                continue;
+            // with a separator in the suffix the name should match completely
+            if (sep >= 0 && (reversed[i].length() != tail.length() || !path(entry).toString().endsWith(suffix)))
+                continue;
+            first = entry;
+        }
+        return (first == Integer.MAX_VALUE ? Optional.<Path>empty() : Optional.of(path(first)));
+    }
+
+    protected boolean isStale() {
+        final long now = System.currentTimeMillis();
+        if (now - checked < checkInterval)
+            return false;
+        for (int i = 0; i < dirs.length; i++) {
+            try {
+                if (Files.getLastModifiedTime(dirs[i], LinkOption.NOFOLLOW_LINKS).toMillis() != mtimes[i]) {
+                    logger.debug("directory[" + dirs[i] + "] changed, reindexing[" + root + "]");
+                    return true;
+                }
+            } catch (final IOException e) {
+                logger.debug("directory[" + dirs[i] + "] is gone, reindexing[" + root + "]");
+                return true;
+            }
+        }
+        checked = now;
+        return false;
+    }
+
+    /* Building an index */
+
+    private static final class Node {
+        private final Path path;
+        private final String name;
+        private final boolean dir;
+        private long mtime;
+        private int parent = -1;
+        private List<Node> children = Collections.emptyList();
+
+        Node(final Path path, final String name, final boolean dir) {
+            this.path = path;
+            this.name = name;
+            this.dir = dir;
+        }
+    }
+
+    private static final class TooLarge extends RuntimeException {
+        TooLarge() {
+            super(null, null, false, false);
+        }
+    }
+
+    // list a directory, and recursively its subdirectories in parallel
+    private static final class Walk extends RecursiveTask<Node> {
+        private final Node node;
+        private final AtomicInteger count;
+        private final int max;
+
+        Walk(final Node node, final AtomicInteger count, final int max) {
+            this.node = node;
+            this.count = count;
+            this.max = max;
+        }
+
+        @Override
+        protected Node compute() {
+            try {
+                node.mtime = Files.getLastModifiedTime(node.path, LinkOption.NOFOLLOW_LINKS).toMillis();
+                final List<Node> children = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(node.path)) {
+                    for (final Path child : stream) {
+                        if (count.incrementAndGet() > max)
+                            throw new TooLarge();
+                        final boolean dir = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+                        children.add(new Node(child, child.getFileName().toString(), dir));
+                    }
+                }
+                children.sort((a, b) -> a.name.compareTo(b.name));
+                final List<Walk> walks = new ArrayList<>();
+                for (final Node child : children) {
+                    if (child.dir)
+                        walks.add(new Walk(child, count, max));
+                }
+                invokeAll(walks);
+                node.children = children;
+            } catch (final IOException e) {
+                logger.warn("couldn't index directory[" + node.path + "]: " + e);
+            }
+            return node;
+        }
+    }
+
+    protected static FileIndex build(final Path root) throws IOException {
+        if (!Files.isDirectory(root))
+            throw new IOException("[" + root + "] is not a directory");
+        final long start = System.currentTimeMillis();
+        final Node top = new Node(root, root.toString(), true);
+        try {
+            ForkJoinPool.commonPool().invoke(new Walk(top, new AtomicInteger(), maxEntries));
+        } catch (final TooLarge e) {
+            return null;
+        }
+        // flatten in depth-first order
+        final List<Node> entries = new ArrayList<>();
+        final List<Node> directories = new ArrayList<>();
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(top);
+        while (!stack.isEmpty()) {
+            final Node node = stack.pop();
+            final int index = entries.size();
+            entries.add(node);
+            if (node.dir) {
+                directories.add(node);
+                for (int i = node.children.size() - 1; i >= 0; i--) {
+                    node.children.get(i).parent = index;
+                    stack.push(node.children.get(i));
+                }
+            }
+        }
+        final FileIndex index = new FileIndex(root, entries, directories);
+        logger.debug("indexed[" + root + "]: " + index.size() + " entries in " + (System.currentTimeMillis() - start)
+                + "ms, ~" + (index.getMemoryUsage() / 1024) + "KB");
+        return index;
+    }
+
+    /**
+     * Get the number of entries of each cached index.
+     */
+    public static Map<Path, Integer> getIndexSizes() {
+        final Map<Path, Integer> res = new HashMap<>();
+        synchronized (indexes) {
+            for (final Map.Entry<Path, FileIndex> index : indexes.entrySet())
+                res.put(index.getKey(), index.getValue().size());
+        }
+        return res;
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLStreamException;
+import net.sf.saxon.s9api.BuildingStreamWriter;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Streams JSON from a Reader into XDM trees in the format of fn:json-to-xml
+ * with its default options, without loading the JSON text first. Either the
+ * whole input becomes one document, or the members of a top-level array
+ * become a document each, built one at a time.
+ *
+ * @author menzowi
+ */
+public class JsonXmlBuilder implements Closeable {
+
+    public static final String FN_NS = "http://www.w3.org/2005/xpath-functions";
+
+    private final DocumentBuilder builder;
+
+    private final Reader in;
+
+    private final char[] buf = new char[8192];
+    private int pos = 0;
+    private int lim = 0;
+    private long line = 1;
+
+    private final StringBuilder sb = new StringBuilder();
+
+    public JsonXmlBuilder(final DocumentBuilder builder, final Reader in) {
+        this.builder = builder;
+        this.in = in;
+    }
+
+    /**
+     * Build a document from the whole input.
+     */
+    public XdmNode parse() throws SaxonApiException {
+        final XdmNode doc = build();
+        if (peek() != -1)
+            throw error("unexpected content after the JSON value");
+        return doc;
+    }
+
+    /**
+     * Build the documents of the members of the top-level array lazily.
+     * Problems found while iterating are thrown as a RuntimeException with
+     * a SaxonApiException as cause. The input is closed when the array has
+     * been read, or when reading it failed.
+     */
+    public Iterator<XdmNode> parseArray() throws SaxonApiException {
+        try {
+            if (peek() != '[')
+                throw error("expected a top-level array");
+            read();
+        } catch (final SaxonApiException e) {
+            closeQuietly();
+            throw e;
+        }
+        return new Iterator<XdmNode>() {
+            private XdmNode next = null;
+            private boolean first = true;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null)
+                    return true;
+                if (done)
+                    return false;
+                try {
+                    int c = peek();
+                    if (c == ']') {
+                        read();
+                        if (peek() != -1)
+                            throw error("unexpected content after the JSON value");
+                        done = true;
+                        close();
+                        return false;
+                    }
+                    if (!first) {
+                        if (c != ',')
+                            throw error("expected ',' or ']' in array");
+                        read();
+                    }
+                    first = false;
+                    next = build();
+                    return true;
+                } catch (final SaxonApiException e) {
+                    throw failed(e);
+                } catch (final IOException e) {
+                    throw failed(new SaxonApiException(e));
+                }
+            }
+
+            private RuntimeException failed(final SaxonApiException e) {
+                done = true;
+                closeQuietly();
+                return new RuntimeException(e);
+            }
+
+            @Override
+            public XdmNode next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                final XdmNode res = next;
+                next = null;
+                return res;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (final IOException e) {
+            // the failure that made us close is more interesting
+        }
+    }
+
+    // build a document from the next value
+    protected XdmNode build() throws SaxonApiException {
+        final BuildingStreamWriter writer = builder.newBuildingStreamWriter();
+        try {
+            writer.writeStartDocument();
+            value(writer, null, true);
+            writer.writeEndDocument();
+            writer.close();
+        } catch (final XMLStreamException e) {
+            throw new SaxonApiException(e);
+        }
+        return writer.getDocumentNode();
+    }
+
+    protected void value(final BuildingStreamWriter w, final String key, final boolean root)
+            throws SaxonApiException, XMLStreamException {
+        final int c = peek();
+        switch (c) {
+            case '{':
+                read();
+                start(w, "map", key, root);
+                if (peek() == '}')
+                    read();
+                else {
+                    while (true) {
+                        if (peek() != '"')
+                            throw error("expected a key in object");
+                        final String k = string();
+                        if (peek() != ':')
+                            throw error("expected ':' in object");
+                        read();
+                        value(w, k, false);
+                        final int d = read();
+                        if (d == '}')
+                            break;
+                        if (d != ',')
+                            throw error("expected ',' or '}' in object");
+                    }
+                }
+                w.writeEndElement();
+                break;
+            case '[':
+                read();
+                start(w, "array", key, root);
+                if (peek() == ']')
+                    read();
+                else {
+                    while (true) {
+                        value(w, null, false);
+                        final int d = read();
+                        if (d == ']')
+                            break;
+                        if (d != ',')
+                            throw error("expected ',' or ']' in array");
+                    }
+                }
+                w.writeEndElement();
+                break;
+            case '"':
+                final String s = string();
+                start(w, "string", key, root);
+                w.writeCharacters(s);
+                w.writeEndElement();
+                break;
+            case 't':
+                literal("true");
+                start(w, "boolean", key, root);
+                w.writeCharacters("true");
+                w.writeEndElement();
+                break;
+            case 'f':
+                literal("false");
+                start(w, "boolean", key, root);
+                w.writeCharacters("false");
+                w.writeEndElement();
+                break;
+            case 'n':
+                literal("null");
+                start(w, "null", key, root);
+                w.writeEndElement();
+                break;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    final String n = number();
+                    start(w, "number", key, root);
+                    w.writeCharacters(n);
+                    w.writeEndElement();
+                } else
+                    throw error(c == -1 ? "unexpected end of JSON" : "unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private static void start(final BuildingStreamWriter w, final String name, final String key, final boolean root)
+            throws XMLStreamException {
+        w.writeStartElement("", name, FN_NS);
+        if (root)
+            w.writeDefaultNamespace(FN_NS);
+        if (key != null)
+            w.writeAttribute("key", key);
+    }
+
+    private void literal(final String lit) throws SaxonApiException {
+        for (int i = 0; i < lit.length(); i++) {
+            if (next() != lit.charAt(i))
+                throw error("invalid literal, expected " + lit);
+        }
+    }
+
+    private String number() throws SaxonApiException {
+        sb.setLength(0);
+        int c = next();
+        if (c == '-') {
+            sb.append('-');
+            c = next();
+        }
+        if (c == '0')
+            sb.append('0');
+        else if (c >= '1' && c <= '9') {
+            sb.append((char) c);
+            digits();
+        } else
+            throw error("invalid number");
+        if (peekRaw() == '.') {
+            sb.append((char) next());
+            if (!isDigit(peekRaw()))
+                throw error("invalid number");
+            digits();
+        }
+        if (peekRaw() == 'e' || peekRaw() == 'E') {
+            sb.append((char) next());
+            if (peekRaw() == '+' || peekRaw() == '-')
+                sb.append((char) next());
+            if (!isDigit(peekRaw()))
+                throw error("invalid number");
+            digits();
+        }
+        return sb.toString();
+    }
+
+    private void digits() throws SaxonApiException {
+        while (isDigit(peekRaw()))
+            sb.append((char) next());
+    }
+
+    private static boolean isDigit(final int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // read a string, replacing characters that aren't allowed in XML by U+FFFD
+    private String string() throws SaxonApiException {
+        read(); // the opening quote
+        sb.setLength(0);
+        while (true) {
+            int c = next();
+            if (c == -1)
+                throw error("unterminated string");
+            if (c == '"')
+                break;
+            if (c < 0x20)
+                throw error("unescaped control character in string");
+            if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case '"':  sb.append('"');  break;
+                    case '\\': sb.append('\\'); break;
+                    case '/':  sb.append('/');  break;
+                    case 'b':  sb.append('\b'); break;
+                    case 'f':  sb.append('\f'); break;
+                    case 'n':  sb.append('\n'); break;
+                    case 'r':  sb.append('\r'); break;
+                    case 't':  sb.append('\t'); break;
+                    case 'u':  sb.append((char) hex4()); break;
+                    default:
+                        throw error("invalid escape in string");
+                }
+                continue;
+            }
+            sb.append((char) c);
+        }
+        return clean(sb);
+    }
+
+    private int hex4() throws SaxonApiException {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            final int d = Character.digit(next(), 16);
+            if (d < 0)
+                throw error("invalid \\u escape in string");
+            v = (v << 4) | d;
+        }
+        return v;
+    }
+
+    private static String clean(final StringBuilder s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                i++;
+            } else if ((c < 0x20 && c != '\t' && c != '\n' && c != '\r') || Character.isSurrogate(c) || c == '\uFFFE'
+                    || c == '\uFFFF') {
+                s.setCharAt(i, '\uFFFD');
+            }
+        }
+        return s.toString();
+    }
+
+    // the next character after whitespace, without consuming it
+    private int peek() throws SaxonApiException {
+        while (true) {
+            final int c = peekRaw();
+            if (c == ' ' || c == '\t' || c == '\r')
+                pos++;
+            else if (c == '\n') {
+                line++;
+                pos++;
+            } else
+                return c;
+        }
+    }
+
+    // the next non whitespace character
+    private int read() throws SaxonApiException {
+        final int c = peek();
+        if (c != -1)
+            pos++;
+        return c;
+    }
+
+    private int peekRaw() throws SaxonApiException {
+        if (pos == lim && !fill())
+            return -1;
+        return buf[pos];
+    }
+
+    private int next() throws SaxonApiException {
+        if (pos == lim && !fill())
+            return -1;
+        return buf[pos++];
+    }
+
+    private boolean fill() throws SaxonApiException {
+        try {
+            final int n = in.read(buf, 0, buf.length);
+            if (n <= 0)
+                return false;
+            pos = 0;
+            lim = n;
+            return true;
+        } catch (final IOException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    private SaxonApiException error(final String msg) {
+        return new SaxonApiException("invalid JSON at line " + line + ": " + msg);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How Saxon.save writes a file: compressed or not, with which buffer size,
+ * and whether the file only appears, under its final name, once it's
+ * complete.
+ *
+ * <pre>
+ * File file = new File("export.xml.gz");
+ * Saxon.save(doc, file, SaveOptions.forFile(file).setBufferSize(1 &lt;&lt; 20));
+ * </pre>
+ *
+ * @author menzowi
+ */
+public final class SaveOptions {
+
+    private static final Logger logger = LoggerFactory.getLogger(SaveOptions.class.getName());
+
+    public enum Compression {
+        NONE, GZIP
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Random RANDOM = new Random();
+
+    private Compression compression = Compression.NONE;
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private boolean atomic = true;
+
+    private boolean sync = false;
+
+    public static SaveOptions gzip() {
+        return new SaveOptions().setCompression(Compression.GZIP);
+    }
+
+    /**
+     * The default options for a file, i.e., gzip compressed if its name ends
+     * with .gz.
+     */
+    public static SaveOptions forFile(final File file) {
+        return (file.getName().endsWith(".gz") ? gzip() : new SaveOptions());
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public SaveOptions setCompression(final Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Set the compression level, from 1 (fastest) to 9 (smallest), or -1 for
+     * the default.
+     */
+    public SaveOptions setLevel(final int level) {
+        this.level = level;
+        return this;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public SaveOptions setBufferSize(final int bufferSize) {
+        this.bufferSize = Math.max(512, bufferSize);
+        return this;
+    }
+
+    public boolean isAtomic() {
+        return atomic;
+    }
+
+    /**
+     * Write into a temporary file next to the target, and rename it to the
+     * target when complete, so readers never see a partial file. Defaults to
+     * true.
+     */
+    public SaveOptions setAtomic(final boolean atomic) {
+        this.atomic = atomic;
+        return this;
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * Force the content to the disk before the file is closed (and renamed).
+     */
+    public SaveOptions setSync(final boolean sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    /**
+     * Open a file for writing with these options. Close the output to
+     * complete the file, or abort it to remove what's written.
+     */
+    public Output open(final File file) throws IOException {
+        final Path target = file.toPath().toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path path = target;
+        FileChannel channel = null;
+        if (atomic) {
+            // not Files.createTempFile, which makes the file readable by its
+            // owner only, while the umask should apply as for a plain save
+            while (channel == null) {
+                path = target.resolveSibling("." + target.getFileName() + "."
+                        + Long.toHexString(RANDOM.nextLong() & Long.MAX_VALUE) + ".part");
+                try {
+                    channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                } catch (final FileAlreadyExistsException e) {
+                    // try another name
+                }
+            }
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        try {
+            final BufferedOutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(channel),
+                    bufferSize);
+            final Gzip gzip = (compression == Compression.GZIP ? new Gzip(buffered, bufferSize, level) : null);
+            return new Output(gzip != null ? gzip : buffered, gzip, buffered, channel, path, target);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            if (atomic)
+                Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    // gives access to the deflater, to set its level and to end it
+    private static final class Gzip extends GZIPOutputStream {
+        Gzip(final OutputStream out, final int size, final int level) throws IOException {
+            super(out, size);
+            def.setLevel(level);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+
+    /**
+     * The stream to a file opened with some options.
+     */
+    public final class Output extends FilterOutputStream {
+        private final Gzip gzip;
+        private final BufferedOutputStream buffered;
+        private final FileChannel channel;
+        private final Path path;
+        private final Path target;
+        private boolean closed = false;
+
+        Output(final OutputStream out, final Gzip gzip, final BufferedOutputStream buffered,
+                final FileChannel channel, final Path path, final Path target) {
+            super(out);
+            this.gzip = gzip;
+            this.buffered = buffered;
+            this.channel = channel;
+            this.path = path;
+            this.target = target;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        /**
+         * Complete the file.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            boolean done = false;
+            try {
+                if (gzip != null)
+                    gzip.finish();
+                buffered.flush();
+                if (sync)
+                    channel.force(true);
+                channel.close();
+                if (atomic) {
+                    try {
+                        Files.move(path, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (final AtomicMoveNotSupportedException e) {
+                        Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                done = true;
+            } finally {
+                if (!done)
+                    discard();
+                else
+                    end();
+            }
+        }
+
+        /**
+         * Give up on the file, a partially written temporary file is removed.
+         */
+        public void abort() {
+            if (closed)
+                return;
+            closed = true;
+            discard();
+        }
+
+        // free the native memory of the deflater, without waiting for GC
+        private void end() {
+            if (gzip != null)
+                gzip.end();
+        }
+
+        private void discard() {
+            end();
+            try {
+                channel.close();
+                if (atomic)
+                    Files.deleteIfExists(path);
+            } catch (final IOException e) {
+                logger.warn("couldn't remove the partial file[" + path + "]: " + e);
+            }
+        }
+    }
+}
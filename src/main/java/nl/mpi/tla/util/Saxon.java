@@ -17,15 +17,30 @@
 package nl.mpi.tla.util;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
@@ -33,11 +48,14 @@ import javax.xml.transform.TransformerException;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.Transform;
 import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.ItemType;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmSequenceIterator;
 import net.sf.saxon.s9api.XQueryCompiler;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmDestination;
@@ -47,7 +65,6 @@ import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
-import net.sf.saxon.s9api.XsltTransformer;
 import net.sf.saxon.tree.wrapper.VirtualNode;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -68,66 +85,239 @@ public class Saxon extends Transform {
      * share this processor. Otherwise Saxon will complain as it can't used
      * shared constructs, like the NamePool.
      */
-    static private Processor sxProcessor = null;
+    static private volatile Processor sxProcessor = null;
     /**
      * The Saxon XSLT compiler.
      */
-    static private XsltCompiler sxXsltCompiler = null;
+    static private volatile XsltCompiler sxXsltCompiler = null;
     /**
      * The Saxon Document Builder
      */
-    static private DocumentBuilder sxDocumentBuilder = null;
+    static private volatile DocumentBuilder sxDocumentBuilder = null;
+    /**
+     * The cache of compiled XPath expressions.
+     */
+    static private volatile XPathCache sxXPathCache = null;
+    /**
+     * The compiled identity stylesheet.
+     */
+    static private volatile XsltExecutable sxIdentity = null;
+    /**
+     * The cache of compiled stylesheets.
+     */
+    static private volatile StylesheetCache sxStylesheetCache = null;
+    /**
+     * The fn:json-to-xml function.
+     */
+    static private volatile XdmFunctionItem sxJsonToXml = null;
+    /**
+     * The named, independently configured, processors.
+     */
+    static private final ConcurrentHashMap<String, SaxonContext> sxContexts = new ConcurrentHashMap<>();
+    /**
+     * The processor of the command line modes.
+     */
+    static private volatile SaxonContext sxCommandLine = null;
 
     /**
      * Get a Saxon processor, i.e., just-in-time create the Singleton.
+     * Once created no lock is taken.
      *
      * @return The Saxon processor
      */
-    public static synchronized Processor getProcessor() {
-        if (sxProcessor == null) {
-            sxProcessor = new Processor(false);
-            try {
-                SaxonExtensionFunctions.registerAll(sxProcessor.getUnderlyingConfiguration());
-            } catch (final Exception e) {
-                logger.error("Couldn't register the Saxon extension functions!", e);
+    public static Processor getProcessor() {
+        Processor p = sxProcessor;
+        if (p == null) {
+            synchronized (Saxon.class) {
+                p = sxProcessor;
+                if (p == null) {
+                    p = new Processor(false);
+                    try {
+                        SaxonExtensionFunctions.registerAll(p.getUnderlyingConfiguration());
+                    } catch (final Exception e) {
+                        logger.error("Couldn't register the Saxon extension functions!", e);
+                    }
+                    // Configuration sxConfig = p.getUnderlyingConfiguration();
+                    // sxConfig.setMessageEmitterClass("net.sf.saxon.serialize.MessageWarner");
+                    sxProcessor = p;
+                }
             }
-            // Configuration sxConfig = sxProcessor.getUnderlyingConfiguration();
-            // sxConfig.setMessageEmitterClass("net.sf.saxon.serialize.MessageWarner");
         }
-        return sxProcessor;
+        return p;
     }
 
-    public static synchronized XsltCompiler getXsltCompiler() {
-        if (sxXsltCompiler == null) {
-            sxXsltCompiler = getProcessor().newXsltCompiler();
+    public static XsltCompiler getXsltCompiler() {
+        XsltCompiler c = sxXsltCompiler;
+        if (c == null) {
+            synchronized (Saxon.class) {
+                c = sxXsltCompiler;
+                if (c == null) {
+                    c = getProcessor().newXsltCompiler();
+                    sxXsltCompiler = c;
+                }
+            }
         }
-        return sxXsltCompiler;
+        return c;
     }
 
-    public static synchronized XPathCompiler getXPathCompiler() {
+    public static XPathCompiler getXPathCompiler() {
         return getProcessor().newXPathCompiler();
     }
 
-    public static synchronized XQueryCompiler getXQueryCompiler() {
+    public static XQueryCompiler getXQueryCompiler() {
         return getProcessor().newXQueryCompiler();
     }
 
-    public static synchronized DocumentBuilder getDocumentBuilder() {
-        if (sxDocumentBuilder == null) {
-            sxDocumentBuilder = getProcessor().newDocumentBuilder();
+    /**
+     * Get the cache used by xpathCompile, which can be used to turn caching
+     * off, resize it or inspect the hit/miss/eviction counters.
+     *
+     * @return The XPath cache
+     */
+    public static XPathCache getXPathCache() {
+        XPathCache c = sxXPathCache;
+        if (c == null) {
+            synchronized (Saxon.class) {
+                c = sxXPathCache;
+                if (c == null) {
+                    c = new XPathCache(getProcessor());
+                    sxXPathCache = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Get the cache used by buildTransformer(File) and buildTransformer(URL),
+     * which recompiles a stylesheet only when one of its modules changed.
+     *
+     * @return The stylesheet cache
+     */
+    public static StylesheetCache getStylesheetCache() {
+        StylesheetCache c = sxStylesheetCache;
+        if (c == null) {
+            synchronized (Saxon.class) {
+                c = sxStylesheetCache;
+                if (c == null) {
+                    c = new StylesheetCache();
+                    sxStylesheetCache = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public static DocumentBuilder getDocumentBuilder() {
+        DocumentBuilder b = sxDocumentBuilder;
+        if (b == null) {
+            synchronized (Saxon.class) {
+                b = sxDocumentBuilder;
+                if (b == null) {
+                    b = getProcessor().newDocumentBuilder();
+                    sxDocumentBuilder = b;
+                }
+            }
         }
-        return sxDocumentBuilder;
+        return b;
+    }
+
+    /**
+     * Define a named processor, which is created and configured on first
+     * use, so separate workloads don't have to share the default one.
+     *
+     * @param name The name of the processor
+     * @param configurers The configuration steps, e.g.,
+     *        SaxonContext.EXTENSION_FUNCTIONS and SaxonContext.COFFEESACKS
+     * @return The context of the processor
+     * @throws IllegalStateException if the name is already defined
+     */
+    public static SaxonContext defineProcessor(final String name, final SaxonContext.Configurer... configurers) {
+        final SaxonContext ctxt = new SaxonContext(name, configurers);
+        if (sxContexts.putIfAbsent(name, ctxt) != null)
+            throw new IllegalStateException("Saxon processor[" + name + "] is already defined!");
+        return ctxt;
+    }
+
+    /**
+     * Get the context the command line modes, e.g., -batch and -daemon,
+     * compile with, which is configured like the Saxon command line of this
+     * class, i.e., with the extension functions and CoffeeSacks.
+     *
+     * @return The context of the command line
+     */
+    public static SaxonContext getCommandLineContext() {
+        SaxonContext c = sxCommandLine;
+        if (c == null) {
+            synchronized (Saxon.class) {
+                c = sxCommandLine;
+                if (c == null) {
+                    c = new SaxonContext("tlasaxon", SaxonContext.EXTENSION_FUNCTIONS, SaxonContext.COFFEESACKS);
+                    sxCommandLine = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Get the value of a name=value command line parameter, which is
+     * untyped, as the Saxon command line passes it.
+     */
+    public static XdmAtomicValue getCommandLineParameter(final String value) throws SaxonApiException {
+        return new XdmAtomicValue(value, ItemType.UNTYPED_ATOMIC);
     }
 
     /**
-     * Load an XML document.
+     * Get the context of a named processor.
+     *
+     * @return The context, or null if the name isn't defined
+     */
+    public static SaxonContext getContext(final String name) {
+        return sxContexts.get(name);
+    }
+
+    /**
+     * Get a named processor.
+     *
+     * @throws IllegalArgumentException if the name isn't defined
+     */
+    public static Processor getProcessor(final String name) {
+        final SaxonContext ctxt = sxContexts.get(name);
+        if (ctxt == null)
+            throw new IllegalArgumentException("Saxon processor[" + name + "] isn't defined!");
+        return ctxt.getProcessor();
+    }
+
+    /**
+     * Forget a named processor, documents and stylesheets built with it stay
+     * usable.
+     */
+    public static SaxonContext removeProcessor(final String name) {
+        return sxContexts.remove(name);
+    }
+
+    /**
+     * Load an XML document, gzip or zip compressed input is decompressed on
+     * the fly.
      *
      * @param src The source of the document.
      * @return A Saxon XDM node
      * @throws SaxonApiException
      */
     static public XdmNode buildDocument(final Source src) throws SaxonApiException {
-        return getDocumentBuilder().build(src);
+        final long start = SaxonMetrics.start();
+        boolean failed = true;
+        Source in = null;
+        try {
+            in = CompressedInput.detect(src);
+            final XdmNode doc = getDocumentBuilder().build(in);
+            failed = false;
+            return doc;
+        } finally {
+            CompressedInput.close(in);
+            SaxonMetrics.stop("buildDocument", start, failed);
+        }
     }
 
     /**
@@ -143,6 +333,18 @@ public class Saxon extends Transform {
         return doc;
     }
 
+    /**
+     * Get the fn:json-to-xml function, which is looked up only once.
+     */
+    static protected XdmFunctionItem getJsonToXml() throws SaxonApiException {
+        XdmFunctionItem fn = sxJsonToXml;
+        if (fn == null) {
+            fn = XdmFunctionItem.getSystemFunction(Saxon.getProcessor(), new QName("http://www.w3.org/2005/xpath-functions","json-to-xml"), 1);
+            sxJsonToXml = fn;
+        }
+        return fn;
+    }
+
     /**
      * Load JSON.
      *
@@ -151,14 +353,85 @@ public class Saxon extends Transform {
      * @throws SaxonApiException
      */
     static public XdmNode parseJson(final String json) throws SaxonApiException {
-        XdmFunctionItem parseJsonFn = XdmFunctionItem.getSystemFunction(Saxon.getProcessor(), new QName("http://www.w3.org/2005/xpath-functions","json-to-xml"), 1);
-        XdmValue val = parseJsonFn.call(Saxon.getProcessor(), new XdmAtomicValue(json));
+        XdmValue val = getJsonToXml().call(Saxon.getProcessor(), new XdmAtomicValue(json));
         if (!(val instanceof net.sf.saxon.s9api.XdmNode)) {
           throw new SaxonApiException("Saxon.parseJson() resulted in "+val.getClass().getCanonicalName()+" != net.sf.saxon.s9api.XdmNode!");
         }
         return (XdmNode)val;
         }
 
+    /**
+     * Load JSON incrementally, i.e., without loading the JSON text first,
+     * into the same XML format as fn:json-to-xml.
+     *
+     * @param json The JSON
+     * @return A Saxon XDM document node
+     * @throws SaxonApiException
+     */
+    static public XdmNode parseJson(final Reader json) throws SaxonApiException {
+        return new JsonXmlBuilder(getDocumentBuilder(), json).parse();
+    }
+
+    /**
+     * Load UTF-8 encoded JSON incrementally.
+     */
+    static public XdmNode parseJson(final InputStream json) throws SaxonApiException {
+        return parseJson(new InputStreamReader(json, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Load a UTF-8 encoded JSON file incrementally.
+     */
+    static public XdmNode parseJson(final Path json) throws SaxonApiException {
+        try (Reader in = Files.newBufferedReader(json, StandardCharsets.UTF_8)) {
+            return parseJson(in);
+        } catch (final IOException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    /**
+     * Load the members of a top-level JSON array one by one, each into its
+     * own document in the format of fn:json-to-xml. The next member is only
+     * read when the iterator asks for it, and the reader is closed when the
+     * array has been read. Errors while iterating are thrown as a
+     * RuntimeException with a SaxonApiException as cause.
+     *
+     * @param json The JSON array
+     * @return An iterator over the XDM document nodes of the members
+     * @throws SaxonApiException
+     */
+    static public Iterator<XdmNode> parseJsonArray(final Reader json) throws SaxonApiException {
+        return new JsonXmlBuilder(getDocumentBuilder(), json).parseArray();
+    }
+
+    /**
+     * Load the members of a top-level JSON array in a UTF-8 encoded file one
+     * by one, see parseJsonArray(Reader). Close the stream, e.g., with
+     * try-with-resources, to close the file when not all members are read.
+     *
+     * @param json The JSON file
+     * @return A stream of the XDM document nodes of the members
+     * @throws SaxonApiException
+     */
+    static public Stream<XdmNode> parseJsonArray(final Path json) throws SaxonApiException {
+        final JsonXmlBuilder builder;
+        try {
+            builder = new JsonXmlBuilder(getDocumentBuilder(), Files.newBufferedReader(json, StandardCharsets.UTF_8));
+        } catch (final IOException e) {
+            throw new SaxonApiException(e);
+        }
+        final Iterator<XdmNode> iter = builder.parseArray();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter, Spliterator.ORDERED | Spliterator.NONNULL),
+                false).onClose(() -> {
+                    try {
+                        builder.close();
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
     /**
      * Compile an XLST document. To use compiled XSLT document use the load() method
      * to turn it into a XsltTransformer.
@@ -168,7 +441,18 @@ public class Saxon extends Transform {
      * @throws SaxonApiException
      */
     static public XsltExecutable buildTransformer(final XdmNode xslStylesheet) throws SaxonApiException {
-        return getXsltCompiler().compile(xslStylesheet.asSource());
+        final long start = SaxonMetrics.start();
+        boolean failed = true;
+        try {
+            final XsltExecutable xsl = getXsltCompiler().compile(xslStylesheet.asSource());
+            final URI base = xslStylesheet.getBaseURI();
+            if (base != null)
+                SaxonMetrics.setName(xsl, base.toString());
+            failed = false;
+            return xsl;
+        } finally {
+            SaxonMetrics.stop("buildTransformer", start, failed);
+        }
     }
 
     /**
@@ -179,7 +463,7 @@ public class Saxon extends Transform {
      * @throws Exception
      */
     static public XsltExecutable buildTransformer(final File file) throws SaxonApiException {
-        return buildTransformer(buildDocument(new javax.xml.transform.stream.StreamSource(file)));
+        return getStylesheetCache().get(file);
     }
 
     /**
@@ -190,7 +474,7 @@ public class Saxon extends Transform {
      * @throws Exception
      */
     static public XsltExecutable buildTransformer(final URL url) throws SaxonApiException {
-        return buildTransformer(buildDocument(new javax.xml.transform.stream.StreamSource(url.toExternalForm())));
+        return getStylesheetCache().get(url);
     }
 
     /**
@@ -221,29 +505,23 @@ public class Saxon extends Transform {
 
     static public XPathSelector xpathCompile(final XdmItem ctxt, final String xp, final Map<String, XdmValue> vars,
             final Map<String, String> nss) throws SaxonApiException {
+        final long start = SaxonMetrics.start();
+        boolean failed = true;
         try {
-            XPathCompiler xpc = getXPathCompiler();
-            if (vars != null) {
-                for (final String name : vars.keySet()) {
-                    xpc.declareVariable(new QName(name));
-                }
-            }
-            if (nss != null) {
-                for (final String prefix : nss.keySet()) {
-                    xpc.declareNamespace(prefix, nss.get(prefix));
-                }
-            }
-            final XPathSelector xps = xpc.compile(xp).load();
+            final XPathSelector xps = getXPathCache().compile(xp, (vars != null ? vars.keySet() : null), nss).load();
             xps.setContextItem(ctxt);
             if (vars != null) {
                 for (final String name : vars.keySet()) {
                     xps.setVariable(new QName(name), vars.get(name));
                 }
             }
+            failed = false;
             return xps;
         } catch (final SaxonApiException e) {
             logger.error("xpathCompile: xpath[" + xp + "] failed: " + e, e);
             throw e;
+        } finally {
+            SaxonMetrics.stop("xpathCompile", start, failed);
         }
     }
 
@@ -279,6 +557,30 @@ public class Saxon extends Transform {
         return xpathIterator(ctxt, xp, null);
     }
 
+    /**
+     * Get the selected items as a lazy stream, the items are only evaluated
+     * when consumed. The stream can be split for parallel processing, and
+     * closing it releases the underlying iterator.
+     *
+     * @return The stream of items
+     * @throws SaxonApiException
+     */
+    static public Stream<XdmItem> xpathStream(final XdmItem ctxt, final String xp, final Map<String, XdmValue> vars,
+            final Map<String, String> nss) throws SaxonApiException {
+        final XdmSequenceIterator<XdmItem> iter = xpathCompile(ctxt, xp, vars, nss).iterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter, Spliterator.ORDERED | Spliterator.NONNULL),
+                false).onClose(iter::close);
+    }
+
+    static public Stream<XdmItem> xpathStream(final XdmItem ctxt, final String xp, final Map<String, XdmValue> vars)
+            throws SaxonApiException {
+        return xpathStream(ctxt, xp, vars, null);
+    }
+
+    static public Stream<XdmItem> xpathStream(final XdmItem ctxt, final String xp) throws SaxonApiException {
+        return xpathStream(ctxt, xp, null, null);
+    }
+
     static public List<XdmItem> xpathList(final XdmItem ctxt, final String xp, final Map<String, XdmValue> vars,
             final Map<String, String> nss) throws SaxonApiException {
         return iterator2List(xpathIterator(ctxt, xp, vars, nss));
@@ -309,11 +611,30 @@ public class Saxon extends Transform {
 
     static public String xpath2string(final XdmItem ctxt, final String xp, final Map<String, XdmValue> vars,
             final Map<String, String> nss) throws SaxonApiException {
-        String res = "";
-        for (final Iterator iter = xpathIterator(ctxt, xp, vars, nss); iter.hasNext();) {
-            res += ((XdmItem) iter.next()).getStringValue();
+        return xpath2string(ctxt, xp, vars, nss, new StringBuilder()).toString();
+    }
+
+    /**
+     * Append the string values of the selected items, without collecting
+     * them first.
+     *
+     * @param out Where to append to
+     * @return The out parameter
+     * @throws SaxonApiException
+     */
+    static public <A extends Appendable> A xpath2string(final XdmItem ctxt, final String xp,
+            final Map<String, XdmValue> vars, final Map<String, String> nss, final A out) throws SaxonApiException {
+        try {
+            final SimplePath sp = (SimplePath.isEnabled() ? SimplePath.parse(xp) : null);
+            if (sp != null && sp.append(ctxt, nss, out))
+                return out;
+            for (final Iterator<XdmItem> iter = xpathIterator(ctxt, xp, vars, nss); iter.hasNext();) {
+                out.append(iter.next().getStringValue());
+            }
+        } catch (final IOException e) {
+            throw new SaxonApiException(e);
         }
-        return res;
+        return out;
     }
 
     static public String xpath2string(final XdmItem ctxt, final String xp, final Map<String, XdmValue> vars)
@@ -327,6 +648,12 @@ public class Saxon extends Transform {
 
     static public boolean xpath2boolean(final XdmItem ctxt, final String xp, final Map<String, XdmValue> vars,
             final Map<String, String> nss) throws SaxonApiException {
+        final SimplePath sp = (SimplePath.isEnabled() ? SimplePath.parse(xp) : null);
+        if (sp != null) {
+            final Boolean res = sp.exists(ctxt, nss);
+            if (res != null)
+                return res;
+        }
         return xpathCompile(ctxt, xp, vars, nss).effectiveBooleanValue();
     }
 
@@ -342,6 +669,12 @@ public class Saxon extends Transform {
     /* Attributes */
 
     static public boolean hasAttribute(final XdmItem ctxt, final String attr) throws SaxonApiException {
+        final SimplePath sp = (SimplePath.isEnabled() ? SimplePath.parse("@" + attr) : null);
+        if (sp != null) {
+            final Boolean res = sp.exists(ctxt, null);
+            if (res != null)
+                return res;
+        }
         return Saxon.xpath2boolean(ctxt, "exists(@" + attr + ")");
     }
 
@@ -365,67 +698,166 @@ public class Saxon extends Transform {
 
     static public String avt(final String avt, final XdmItem ctxt, final Map<String, XdmValue> vars,
             final Map<String, String> nss, final boolean unescape) throws SaxonApiException {
-        String res = "";
-        final Matcher AVTMatcher = AVTPattern.matcher(avt);
-        int start = 0;
-        while (AVTMatcher.find()) {
-            if (start < AVTMatcher.start())
-                res += avt.substring(start, AVTMatcher.start());
-            final String grp = AVTMatcher.group();
-            if (grp.startsWith("{{") && grp.endsWith("}}")) {
-                if (unescape)
-                    res += grp.substring(1, grp.length() - 1);
-                else
-                    res += grp;
-            } else {
-                try {
-                    res += Saxon.xpath2string(ctxt, grp.substring(1, grp.length() - 1), vars, nss);
-                } catch (final Exception e) {
-                    logger.error("avt[" + avt + "] failed: " + e, e);
-                    throw e;
+        return compileAvt(avt, (vars != null ? vars.keySet() : null), nss, unescape).evaluate(ctxt, vars);
+    }
+
+    /**
+     * Compile an AVT once, to evaluate it against many context items.
+     *
+     * @param avt The template
+     * @param vars The names of the variables the template may refer to
+     * @param nss The namespace prefix to URI mapping
+     * @param unescape Should {{ and }} be unescaped
+     * @return The compiled AVT
+     * @throws SaxonApiException
+     */
+    static public CompiledAvt compileAvt(final String avt, final Collection<String> vars,
+            final Map<String, String> nss, final boolean unescape) throws SaxonApiException {
+        return new CompiledAvt(avt, vars, nss, unescape);
+    }
+
+    static public CompiledAvt compileAvt(final String avt, final Collection<String> vars,
+            final Map<String, String> nss) throws SaxonApiException {
+        return compileAvt(avt, vars, nss, true);
+    }
+
+    // save an XML
+
+    /**
+     * Get the compiled identity stylesheet, for the cases where an actual
+     * transform is needed, e.g., to use it as a Destination. It's compiled
+     * only once.
+     *
+     * @return The identity XSLT executable
+     * @throws SaxonApiException
+     */
+    public static XsltExecutable getIdentityTransformer() throws SaxonApiException {
+        XsltExecutable xsl = sxIdentity;
+        if (xsl == null) {
+            synchronized (Saxon.class) {
+                xsl = sxIdentity;
+                if (xsl == null) {
+                    xsl = buildTransformer(Saxon.class.getResource("/identity.xsl"));
+                    sxIdentity = xsl;
                 }
             }
-            start = AVTMatcher.end();
         }
-        if (start < avt.length())
-            res += avt.substring(start, avt.length());
-        if (start > 0)
-            logger.debug("AVT result[" + res + "]");
-        return res;
+        return xsl;
     }
 
-    // save an XML
+    /**
+     * Configure a serializer with the same output settings as identity.xsl.
+     */
+    static protected Serializer setOutputProperties(final Serializer serializer) {
+        serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+        serializer.setOutputProperty(Serializer.Property.ENCODING, "utf-8");
+        return serializer;
+    }
 
-    static public void save(final Source source, final File result) throws SaxonApiException {
+    static protected void serialize(final Source source, final Serializer serializer) throws SaxonApiException {
         try {
-            final XsltTransformer transformer = buildTransformer(Saxon.class.getResource("/identity.xsl")).load();
-            transformer.setSource(source);
-            transformer.setDestination(getProcessor().newSerializer(result));
-            transformer.transform();
-            transformer.close();
+            setOutputProperties(serializer).serialize(source);
+            serializer.close();
+        } catch (final SaxonApiException ex) {
+            throw ex;
         } catch (final Exception ex) {
             throw new SaxonApiException(ex);
         }
     }
 
-    static public void save(final XdmDestination dest, final File result) throws SaxonApiException {
-        Saxon.save(dest.getXdmNode().asSource(), result);
-    }
-
-    static public String toString(final Source source) throws SaxonApiException {
+    static protected void serialize(final XdmNode node, final Serializer serializer) throws SaxonApiException {
         try {
-            final XsltTransformer transformer = buildTransformer(Saxon.class.getResource("/identity.xsl")).load();
-            transformer.setSource(source);
-            final StringWriter str = new StringWriter();
-            transformer.setDestination(getProcessor().newSerializer(str));
-            transformer.transform();
-            transformer.close();
-            return str.toString();
+            setOutputProperties(serializer).serializeNode(node);
+            serializer.close();
+        } catch (final SaxonApiException ex) {
+            throw ex;
         } catch (final Exception ex) {
             throw new SaxonApiException(ex);
         }
     }
 
+    static public void save(final Source source, final File result) throws SaxonApiException {
+        serialize(source, getProcessor().newSerializer(result));
+    }
+
+    static public void save(final Source source, final OutputStream result) throws SaxonApiException {
+        serialize(source, getProcessor().newSerializer(result));
+    }
+
+    static public void save(final Source source, final Writer result) throws SaxonApiException {
+        serialize(source, getProcessor().newSerializer(result));
+    }
+
+    static public void save(final XdmNode node, final File result) throws SaxonApiException {
+        serialize(node, getProcessor().newSerializer(result));
+    }
+
+    static public void save(final XdmNode node, final OutputStream result) throws SaxonApiException {
+        serialize(node, getProcessor().newSerializer(result));
+    }
+
+    static public void save(final XdmNode node, final Writer result) throws SaxonApiException {
+        serialize(node, getProcessor().newSerializer(result));
+    }
+
+    /**
+     * Save to a file, compressed, buffered and/or atomically as the options
+     * say.
+     *
+     * @param source The document to save
+     * @param result The file to save to
+     * @param options How to write the file, e.g., SaveOptions.forFile(result)
+     * @throws SaxonApiException
+     */
+    static public void save(final Source source, final File result, final SaveOptions options)
+            throws SaxonApiException {
+        save(result, options, out -> serialize(source, getProcessor().newSerializer(out)));
+    }
+
+    static public void save(final XdmNode node, final File result, final SaveOptions options)
+            throws SaxonApiException {
+        save(result, options, out -> serialize(node, getProcessor().newSerializer(out)));
+    }
+
+    private interface Writing {
+        void write(OutputStream out) throws SaxonApiException;
+    }
+
+    private static void save(final File result, final SaveOptions options, final Writing writing)
+            throws SaxonApiException {
+        final long start = SaxonMetrics.start();
+        boolean failed = true;
+        SaveOptions.Output out = null;
+        try {
+            out = options.open(result);
+            writing.write(out);
+            out.close();
+            failed = false;
+        } catch (final IOException e) {
+            throw new SaxonApiException(e);
+        } finally {
+            if (failed && out != null)
+                out.abort();
+            SaxonMetrics.stop("save", start, failed);
+        }
+    }
+
+    static public void save(final XdmDestination dest, final File result) throws SaxonApiException {
+        Saxon.save(dest.getXdmNode(), result);
+    }
+
+    static public String toString(final Source source) throws SaxonApiException {
+        final StringWriter str = new StringWriter();
+        Saxon.save(source, str);
+        return str.toString();
+    }
+
+    static public String toString(final XdmNode node) throws SaxonApiException {
+        final StringWriter str = new StringWriter();
+        Saxon.save(node, str);
+        return str.toString();
+    }
+
     // Turn an XdmItem Iterator into a List
     static public List<XdmItem> iterator2List(final Iterator<XdmItem> iter) {
         final List<XdmItem> list = new ArrayList<>();
@@ -445,6 +877,15 @@ public class Saxon extends Transform {
     }
 
     public static void main(final String args[]) {
+        if (args.length > 0 && args[0].equals("-batch")) {
+            System.exit(SaxonBatchCommand.run(args));
+        }
+        if (args.length > 0 && (args[0].startsWith("-daemon") || args[0].startsWith("-client"))) {
+            System.exit(SaxonDaemon.run(args));
+        }
+        if (args.length > 0 && args[0].startsWith("-warmup:")) {
+            System.exit(SaxonWarmup.run(args));
+        }
         final Saxon saxon = new Saxon();
         saxon.doTransform(args, "TLA Saxon");
     }
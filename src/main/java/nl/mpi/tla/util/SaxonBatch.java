@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.MessageListener2;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+/**
+ * Run a shared XSLT executable over many inputs in parallel. Each worker
+ * thread loads its own XsltTransformer, and at most a bounded number of
+ * inputs is in flight at any time.
+ *
+ * @author menzowi
+ */
+public class SaxonBatch {
+
+    private static final Logger logger = LoggerFactory.getLogger(SaxonBatch.class.getName());
+
+    /**
+     * Maps an input to the destination of its transform.
+     */
+    public interface Output {
+        Destination getDestination(Source source, String id) throws SaxonApiException;
+    }
+
+    /**
+     * The outcome of transforming a single input.
+     */
+    public static final class Result {
+        private final String id;
+        private final Exception error;
+        private final long nanos;
+        private final List<SaxonListener.Message> messages;
+        private final long[] counts = new long[SaxonListener.Level.values().length];
+
+        Result(final String id, final Exception error, final long nanos, final SaxonListener listener) {
+            this.id = id;
+            this.error = error;
+            this.nanos = nanos;
+            this.messages = listener.getMessages();
+            for (final SaxonListener.Level level : SaxonListener.Level.values())
+                counts[level.ordinal()] = listener.getCount(level);
+        }
+
+        // the result of an input that didn't need a transform
+        Result(final String id, final long nanos) {
+            this.id = id;
+            this.error = null;
+            this.nanos = nanos;
+            this.messages = Collections.emptyList();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public long getDuration(final TimeUnit unit) {
+            return unit.convert(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Get the messages captured during the transform, empty unless
+         * capturing is turned on with setCapture().
+         */
+        public List<SaxonListener.Message> getMessages() {
+            return messages;
+        }
+
+        /**
+         * Get the number of messages of a level emitted during the transform,
+         * 0 unless capturing is turned on with setCapture().
+         */
+        public long getCount(final SaxonListener.Level level) {
+            return counts[level.ordinal()];
+        }
+
+        public boolean hasErrors() {
+            return !isSuccess() || getCount(SaxonListener.Level.ERROR) > 0;
+        }
+
+        @Override
+        public String toString() {
+            return id + ": " + (isSuccess() ? "OK" : "FAILED (" + error + ")") + " in "
+                    + getDuration(TimeUnit.MILLISECONDS) + "ms"
+                    + (getCount(SaxonListener.Level.ERROR) > 0 ? ", " + getCount(SaxonListener.Level.ERROR) + " ERR" : "")
+                    + (getCount(SaxonListener.Level.WARN) > 0 ? ", " + getCount(SaxonListener.Level.WARN) + " WRN" : "");
+        }
+    }
+
+    private final XsltExecutable xsl;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int maxInFlight = 0;
+
+    private String type = "Saxon";
+
+    private String mdc = "sip";
+
+    private boolean async = false;
+
+    private boolean collapse = false;
+
+    private int capture = 0;
+
+    private final Map<QName, XdmValue> params = new HashMap<>();
+
+    public SaxonBatch(final XsltExecutable xsl) {
+        this.xsl = xsl;
+    }
+
+    public SaxonBatch setThreads(final int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of inputs submitted but not yet transformed,
+     * defaults to twice the number of threads.
+     */
+    public SaxonBatch setMaxInFlight(final int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Set the type used by the SaxonListener of each input.
+     */
+    public SaxonBatch setType(final String type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Set the MDC key under which the id of each input is logged.
+     */
+    public SaxonBatch setMDC(final String mdc) {
+        this.mdc = mdc;
+        return this;
+    }
+
+    /**
+     * Log the messages of the transforms asynchronously, optionally
+     * collapsing repeated identical messages.
+     */
+    public SaxonBatch setAsyncListener(final boolean async, final boolean collapse) {
+        this.async = async;
+        this.collapse = collapse;
+        return this;
+    }
+
+    /**
+     * Capture up to this many messages per input, to be inspected via the
+     * results.
+     */
+    public SaxonBatch setCapture(final int capture) {
+        this.capture = capture;
+        return this;
+    }
+
+    public SaxonBatch setParameter(final QName name, final XdmValue value) {
+        params.put(name, value);
+        return this;
+    }
+
+    /**
+     * Create the listener for a single input, by default a SaxonListener
+     * logging with the id of the input in the MDC.
+     */
+    protected SaxonListener newListener(final String id) {
+        final SaxonListener listener = (async ? new AsyncSaxonListener(type, mdc, id, collapse)
+                : new SaxonListener(type, mdc, id));
+        if (capture > 0)
+            listener.setCapture(capture);
+        return listener;
+    }
+
+    protected XsltTransformer newTransformer() {
+        final XsltTransformer transformer = xsl.load();
+        for (final Map.Entry<QName, XdmValue> param : params.entrySet())
+            transformer.setParameter(param.getKey(), param.getValue());
+        return transformer;
+    }
+
+    protected String getId(final Source source, final long index) {
+        if (source.getSystemId() != null)
+            return source.getSystemId();
+        return "#" + index;
+    }
+
+    /**
+     * Transform all the sources.
+     *
+     * @param sources The inputs
+     * @param output The mapping of inputs to destinations
+     * @return The result of each input, in the order of the inputs
+     * @throws InterruptedException
+     */
+    public List<Result> run(final Iterator<? extends Source> sources, final Output output)
+            throws InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final ThreadLocal<XsltTransformer> transformers = ThreadLocal.withInitial(this::newTransformer);
+        final Semaphore inFlight = new Semaphore(maxInFlight > 0 ? maxInFlight : 2 * threads);
+        final List<Future<Result>> futures = new ArrayList<>();
+        try {
+            long index = 0;
+            while (sources.hasNext()) {
+                final Source source = sources.next();
+                final String id = getId(source, index++);
+                inFlight.acquire();
+                try {
+                    futures.add(pool.submit(() -> {
+                        try {
+                            final Result result = transform(transformers::get, source, id, output);
+                            if (!result.isSuccess())
+                                transformers.remove(); // don't reuse a transformer after a failure
+                            return result;
+                        } finally {
+                            inFlight.release();
+                        }
+                    }));
+                } catch (final RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+            final List<Result> results = new ArrayList<>(futures.size());
+            for (final Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (final ExecutionException e) {
+                    // transform() catches everything, so this shouldn't happen
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return Collections.unmodifiableList(results);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // report the transform to the metrics, per stylesheet
+    private Result measured(final Result result) {
+        if (SaxonMetrics.isMetricsEnabled())
+            SaxonMetrics.record("transform:" + SaxonMetrics.getName(xsl), result.getDuration(TimeUnit.NANOSECONDS),
+                    !result.isSuccess());
+        return result;
+    }
+
+    /**
+     * Transform a single input on a worker thread. The transformer is only
+     * loaded here, so a failure to load it is a failed result too, the
+     * transform itself is left to transform(XsltTransformer, ...).
+     */
+    protected Result transform(final Supplier<XsltTransformer> transformers, final Source source, final String id,
+            final Output output) {
+        final long start = System.nanoTime();
+        final XsltTransformer transformer;
+        try {
+            transformer = transformers.get();
+        } catch (final RuntimeException e) {
+            logger.error(type + ": loading the transformer for [" + id + "] failed: " + e, e);
+            final SaxonListener listener = newListener(id);
+            listener.close();
+            return measured(new Result(id, e, System.nanoTime() - start, listener));
+        }
+        return transform(transformer, source, id, output);
+    }
+
+    protected Result transform(final XsltTransformer transformer, final Source source, final String id,
+            final Output output) {
+        final SaxonListener listener = newListener(id);
+        final String prev = MDC.get(mdc);
+        MDC.put(mdc, id);
+        final long start = System.nanoTime();
+        Destination dest = null;
+        try {
+            dest = output.getDestination(source, id);
+            transformer.setMessageListener((MessageListener2) listener);
+            transformer.setErrorListener(listener);
+            transformer.setSource(source);
+            transformer.setDestination(dest);
+            transformer.transform();
+            return measured(new Result(id, null, System.nanoTime() - start, listener));
+        } catch (final Exception e) {
+            logger.error(type + ": transform of [" + id + "] failed: " + e, e);
+            return measured(new Result(id, e, System.nanoTime() - start, listener));
+        } finally {
+            listener.close();
+            if (dest != null) {
+                try {
+                    dest.close();
+                } catch (final SaxonApiException e) {
+                    logger.warn(type + ": couldn't close the destination of [" + id + "]: " + e, e);
+                }
+            }
+            if (prev != null)
+                MDC.put(mdc, prev);
+            else
+                MDC.remove(mdc);
+        }
+    }
+
+    /**
+     * Transform files, writing each result to a file with the same name in
+     * the output directory. A file listed more than once is transformed
+     * once.
+     *
+     * @throws IllegalArgumentException if several files have the same name
+     */
+    public List<Result> run(final Collection<File> files, final File outDir) throws InterruptedException {
+        final Map<String, File> outputs = new HashMap<>();
+        final Map<File, File> inputs = new HashMap<>();
+        final List<Source> sources = new ArrayList<>(files.size());
+        for (final File file : files) {
+            final File in = canonical(file);
+            final File out = new File(outDir, file.getName());
+            final File prev = inputs.putIfAbsent(out, in);
+            if (prev != null) {
+                if (prev.equals(in))
+                    continue;
+                throw new IllegalArgumentException("the inputs[" + prev + "] and [" + file
+                        + "] have the same output[" + out + "]");
+            }
+            final Source source = new StreamSource(file);
+            outputs.put(source.getSystemId(), out);
+            sources.add(source);
+        }
+        return run(sources.iterator(), fileOutput(outputs));
+    }
+
+    private static File canonical(final File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (final IOException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Transform all files in a directory tree whose name ends with the
+     * suffix, the results mirror the tree in the output directory. The
+     * inputs are processed in the order of their sorted paths.
+     */
+    public List<Result> run(final File inDir, final String suffix, final File outDir)
+            throws InterruptedException, IOException {
+        final Path in = inDir.toPath();
+        final List<Path> paths;
+        try (Stream<Path> stream = Files.walk(in)) {
+            paths = stream.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(suffix)).sorted()
+                    .collect(Collectors.toList());
+        }
+        final Map<String, File> outputs = new HashMap<>();
+        final List<Source> sources = new ArrayList<>(paths.size());
+        for (final Path path : paths) {
+            final Source source = new StreamSource(path.toFile());
+            outputs.put(source.getSystemId(), outDir.toPath().resolve(in.relativize(path).toString()).toFile());
+            sources.add(source);
+        }
+        return run(sources.iterator(), fileOutput(outputs));
+    }
+
+    protected static Output fileOutput(final Map<String, File> outputs) {
+        return (source, id) -> {
+            final File out = outputs.get(source.getSystemId());
+            if (out.getParentFile() != null)
+                out.getParentFile().mkdirs();
+            return Saxon.getProcessor().newSerializer(out);
+        };
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The batch mode of the tlasaxon CLI: compile a stylesheet once and
+ * transform many inputs on several threads in a single JVM.
+ *
+ * <pre>
+ * tlasaxon -batch -xsl:style.xsl -s:in/ -o:out/ [-ext:.xml] [-threads:N]
+ *          [-manifest:run.tsv] [-skip] [-cache:dir] [-cache-size:MB] [name=value ...]
+ * </pre>
+ *
+ * An input (-s, can be repeated) is a directory, which is searched for files
+ * ending with -ext, a glob pattern, e.g., in/**&#47;*.cmdi, or @file, a file
+ * with one input path per line. The outputs mirror the inputs relative to
+ * the directory, the fixed part of the glob or the working directory, an
+ * absolute path in a list by its name. Outputs outside the output directory,
+ * or shared by several inputs, are refused. With -skip an input is skipped
+ * when its output is newer than both the input and the stylesheet, including
+ * its included and imported modules. The manifest records the status and
+ * timing of each input as tab separated values. With -cache the results are
+ * kept in a content-addressed TransformCache, and inputs whose content,
+ * stylesheet and parameters haven't changed are copied from it instead of
+ * transformed. Like the normal command line, the stylesheet can use the
+ * extension functions and CoffeeSacks, and the parameters are untyped.
+ *
+ * @author menzowi
+ */
+public class SaxonBatchCommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(SaxonBatchCommand.class.getName());
+
+    protected File xsl = null;
+    protected final List<String> inputs = new ArrayList<>();
+    protected File outDir = null;
+    protected String ext = ".xml";
+    protected int threads = Runtime.getRuntime().availableProcessors();
+    protected File manifest = null;
+    protected boolean skip = false;
+    protected File cacheDir = null;
+    protected long cacheSize = TransformCache.DEFAULT_MAX_BYTES;
+    protected final Map<String, String> params = new LinkedHashMap<>();
+
+    public static void usage() {
+        System.err.println("Usage: tlasaxon -batch -xsl:<stylesheet> -s:<dir|glob|@list> [-s:...] -o:<dir>");
+        System.err.println("                [-ext:<suffix>] [-threads:<n>] [-manifest:<file>] [-skip]");
+        System.err.println("                [-cache:<dir>] [-cache-size:<MB>] [name=value ...]");
+    }
+
+    /**
+     * Parse the arguments, and run the batch.
+     *
+     * @return The exit code: 0 if all inputs succeeded, 1 if some failed, 2
+     *         on invalid arguments
+     */
+    public static int run(final String[] args) {
+        final SaxonBatchCommand cmd = new SaxonBatchCommand();
+        if (!cmd.parse(args)) {
+            usage();
+            return 2;
+        }
+        try {
+            return cmd.run();
+        } catch (final IllegalArgumentException e) {
+            System.err.println("ERR: " + e.getMessage());
+            return 2;
+        } catch (final Exception e) {
+            logger.error("batch failed: " + e, e);
+            return 1;
+        }
+    }
+
+    protected boolean parse(final String[] args) {
+        for (final String arg : args) {
+            if (arg.equals("-batch"))
+                continue;
+            else if (arg.startsWith("-xsl:"))
+                xsl = new File(arg.substring(5));
+            else if (arg.startsWith("-s:"))
+                inputs.add(arg.substring(3));
+            else if (arg.startsWith("-o:"))
+                outDir = new File(arg.substring(3));
+            else if (arg.startsWith("-ext:"))
+                ext = arg.substring(5);
+            else if (arg.startsWith("-threads:")) {
+                try {
+                    threads = Integer.parseInt(arg.substring(9));
+                } catch (final NumberFormatException e) {
+                    System.err.println("ERR: invalid number of threads[" + arg.substring(9) + "]");
+                    return false;
+                }
+            } else if (arg.startsWith("-manifest:"))
+                manifest = new File(arg.substring(10));
+            else if (arg.equals("-skip"))
+                skip = true;
+            else if (arg.startsWith("-cache:"))
+                cacheDir = new File(arg.substring(7));
+            else if (arg.startsWith("-cache-size:")) {
+                try {
+                    cacheSize = Long.parseLong(arg.substring(12)) * 1024 * 1024;
+                } catch (final NumberFormatException e) {
+                    System.err.println("ERR: invalid cache size[" + arg.substring(12) + "]");
+                    return false;
+                }
+            }
+            else if (!arg.startsWith("-") && arg.indexOf('=') > 0)
+                params.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            else {
+                System.err.println("ERR: unknown argument[" + arg + "]");
+                return false;
+            }
+        }
+        if (xsl == null || outDir == null || inputs.isEmpty()) {
+            System.err.println("ERR: -xsl, -s and -o are required");
+            return false;
+        }
+        return true;
+    }
+
+    protected int run() throws Exception {
+        final XsltExecutable exec = Saxon.getCommandLineContext().getStylesheetCache().get(xsl);
+        final Map<QName, XdmValue> values = new LinkedHashMap<>();
+        for (final Map.Entry<String, String> param : params.entrySet())
+            values.put(new QName(param.getKey()), Saxon.getCommandLineParameter(param.getValue()));
+        final TransformCache cache = (cacheDir != null ? new TransformCache(cacheDir, cacheSize) : null);
+        final Map<String, File> outputs = new HashMap<>();
+        final CachingBatch batch = new CachingBatch(exec, cache, values, outputs);
+        batch.setThreads(threads);
+        for (final Map.Entry<QName, XdmValue> value : values.entrySet())
+            batch.setParameter(value.getKey(), value.getValue());
+
+        // resolve the inputs to files and their relative output paths
+        final Map<Path, String> files = new LinkedHashMap<>();
+        for (final String input : inputs)
+            resolve(input, files);
+        final Map<Path, File> targets = getOutputs(files);
+        final long xslModified = (skip ? getLastModified(xsl) : 0L);
+
+        final List<Source> sources = new ArrayList<>();
+        final List<String[]> skipped = new ArrayList<>();
+        for (final Map.Entry<Path, File> file : targets.entrySet()) {
+            final File in = file.getKey().toFile();
+            final File out = file.getValue();
+            final Source source = new StreamSource(in);
+            if (skip && out.lastModified() > Math.max(in.lastModified(), xslModified)) {
+                skipped.add(new String[] { source.getSystemId(), out.getPath() });
+                continue;
+            }
+            batch.inputs.put(source.getSystemId(), in);
+            outputs.put(source.getSystemId(), out);
+            sources.add(source);
+        }
+        logger.info("batch: " + sources.size() + " inputs to transform, " + skipped.size() + " skipped, on "
+                + threads + " threads");
+
+        final long start = System.nanoTime();
+        final List<SaxonBatch.Result> results = batch.run(sources.iterator(), SaxonBatch.fileOutput(outputs));
+        int failed = 0;
+        for (final SaxonBatch.Result result : results) {
+            if (!result.isSuccess())
+                failed++;
+        }
+        if (cache != null)
+            logger.info("batch: " + batch.cached.size() + " from the cache, " + cache);
+        logger.info("batch: " + (results.size() - failed) + " succeeded, " + failed + " failed, in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+        if (manifest != null)
+            writeManifest(results, outputs, skipped, batch.cached);
+        return (failed > 0 ? 1 : 0);
+    }
+
+    // looks up, and stores, the results in the cache on the worker threads,
+    // as computing the key means hashing the whole input
+    private final class CachingBatch extends SaxonBatch {
+        private final TransformCache cache;
+        private final Map<QName, XdmValue> values;
+        private final Map<String, File> inputs = new HashMap<>();
+        private final Map<String, File> outputs;
+        private final Set<String> cached = ConcurrentHashMap.newKeySet();
+
+        CachingBatch(final XsltExecutable exec, final TransformCache cache, final Map<QName, XdmValue> values,
+                final Map<String, File> outputs) {
+            super(exec);
+            this.cache = cache;
+            this.values = values;
+            this.outputs = outputs;
+        }
+
+        @Override
+        protected Result transform(final Supplier<XsltTransformer> transformers, final Source source,
+                final String id, final Output output) {
+            if (cache == null)
+                return super.transform(transformers, source, id, output);
+            final long start = System.nanoTime();
+            String key = null;
+            try {
+                key = cache.key(SaxonBatchCommand.this.xsl, inputs.get(id), values);
+                if (key != null && cache.get(key, outputs.get(id))) {
+                    cached.add(id);
+                    return new Result(id, System.nanoTime() - start);
+                }
+            } catch (final Exception e) {
+                logger.warn("batch: couldn't use the cache for [" + id + "]: " + e, e);
+            }
+            final Result result = super.transform(transformers, source, id, output);
+            if (key != null && result.isSuccess()) {
+                try {
+                    cache.put(key, outputs.get(id));
+                } catch (final IOException e) {
+                    logger.warn("batch: couldn't cache the result of [" + id + "]: " + e, e);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Add the files of an input, i.e., a directory, glob or @list, with the
+     * path of their output relative to the output directory.
+     */
+    protected void resolve(final String input, final Map<Path, String> files) throws IOException {
+        if (input.startsWith("@")) {
+            for (final String line : Files.readAllLines(Paths.get(input.substring(1)), StandardCharsets.UTF_8)) {
+                final String name = line.trim();
+                if (name.isEmpty() || name.startsWith("#"))
+                    continue;
+                final Path path = Paths.get(name);
+                files.put(path, (path.isAbsolute() ? path.getFileName() : path.normalize()).toString());
+            }
+            return;
+        }
+        final Path base;
+        final PathMatcher matcher;
+        final Path dir = Paths.get(input);
+        if (!isGlob(input)) {
+            if (!Files.isDirectory(dir)) {
+                files.put(dir, dir.getFileName().toString());
+                return;
+            }
+            base = dir;
+            matcher = null;
+        } else {
+            // the fixed leading part of the pattern is the base directory
+            final String[] steps = input.replace('\\', '/').split("/");
+            final StringBuilder prefix = new StringBuilder();
+            int i = 0;
+            for (; i < steps.length - 1 && !isGlob(steps[i]); i++)
+                prefix.append(steps[i]).append('/');
+            base = Paths.get(prefix.length() > 0 ? prefix.toString() : ".");
+            final StringBuilder rest = new StringBuilder();
+            for (; i < steps.length; i++)
+                rest.append(rest.length() > 0 ? "/" : "").append(steps[i]);
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + rest);
+        }
+        final List<Path> paths;
+        try (Stream<Path> stream = Files.walk(base)) {
+            paths = stream.filter(p -> Files.isRegularFile(p)
+                    && (matcher != null ? matcher.matches(base.relativize(p)) : p.toString().endsWith(ext)))
+                    .sorted().collect(Collectors.toList());
+        }
+        for (final Path path : paths)
+            files.put(path, base.relativize(path).toString());
+    }
+
+    /**
+     * Determine the output file of each input.
+     *
+     * @throws IllegalArgumentException if an output is outside the output
+     *         directory, or several inputs have the same output
+     */
+    protected Map<Path, File> getOutputs(final Map<Path, String> files) {
+        final Path root = outDir.toPath().toAbsolutePath().normalize();
+        final Map<Path, File> outputs = new LinkedHashMap<>();
+        final Map<Path, Path> inputs = new HashMap<>();
+        for (final Map.Entry<Path, String> file : files.entrySet()) {
+            final Path in = file.getKey().toAbsolutePath().normalize();
+            final Path out = root.resolve(file.getValue()).normalize();
+            if (!out.startsWith(root) || out.equals(root))
+                throw new IllegalArgumentException("the output[" + out + "] of input[" + file.getKey()
+                        + "] is outside the output directory[" + root + "]");
+            final Path prev = inputs.putIfAbsent(out, in);
+            if (prev == null)
+                outputs.put(file.getKey(), out.toFile());
+            else if (!prev.equals(in))
+                throw new IllegalArgumentException("the inputs[" + prev + "] and [" + in
+                        + "] have the same output[" + out + "]");
+        }
+        return outputs;
+    }
+
+    /**
+     * Determine the last modification time of the stylesheet, including the
+     * modules it includes or imports.
+     */
+    protected long getLastModified(final File xsl) throws IOException {
+        long last = xsl.lastModified();
+        final List<String> modules = Saxon.getCommandLineContext().getStylesheetCache()
+                .getModules(xsl.toURI().toURL());
+        if (modules != null) {
+            for (final String module : modules)
+                last = Math.max(last, StylesheetCache.stamp(module)[0]);
+        }
+        return last;
+    }
+
+    protected static boolean isGlob(final String s) {
+        for (final char c : "*?[{".toCharArray()) {
+            if (s.indexOf(c) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    protected void writeManifest(final List<SaxonBatch.Result> results, final Map<String, File> outputs,
+            final List<String[]> skipped, final Set<String> cached) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(manifest.toPath(), StandardCharsets.UTF_8))) {
+            out.println("input\tstatus\tmillis\toutput\terror");
+            for (final SaxonBatch.Result result : results) {
+                final File output = outputs.get(result.getId());
+                final String status = (!result.isSuccess() ? "FAILED"
+                        : cached.contains(result.getId()) ? "CACHED" : "OK");
+                out.println(result.getId() + "\t" + status + "\t" + result.getDuration(TimeUnit.MILLISECONDS) + "\t"
+                        + (output != null ? output.getPath() : "") + "\t"
+                        + (result.isSuccess() ? "" : String.valueOf(result.getError()).replaceAll("\\s+", " ")));
+            }
+            for (final String[] s : skipped)
+                out.println(s[0] + "\tSKIPPED\t0\t" + s[1] + "\t");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.xml.transform.Source;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A named, independently configured Saxon processor with its own XSLT
+ * compiler, document builder, XPath cache and stylesheet cache. Documents,
+ * expressions and stylesheets of one context shouldn't be mixed with those
+ * of another context or of the default processor of the Saxon class.
+ * The processor is created, and configured, on first use.
+ *
+ * @author menzowi
+ */
+public class SaxonContext {
+
+    private static final Logger logger = LoggerFactory.getLogger(SaxonContext.class.getName());
+
+    /**
+     * Configures a new processor, e.g., registers extension functions or
+     * sets resolvers.
+     */
+    public interface Configurer {
+        void configure(Processor processor) throws Exception;
+    }
+
+    /**
+     * Registers the sx: and flat: extension functions.
+     */
+    public static final Configurer EXTENSION_FUNCTIONS = new Configurer() {
+        @Override
+        public void configure(final Processor processor) {
+            SaxonExtensionFunctions.registerAll(processor.getUnderlyingConfiguration());
+        }
+    };
+
+    /**
+     * Registers the CoffeeSacks invisible XML functions.
+     */
+    public static final Configurer COFFEESACKS = new Configurer() {
+        @Override
+        public void configure(final Processor processor) throws Exception {
+            new org.nineml.coffeesacks.RegisterCoffeeSacks().initialize(processor.getUnderlyingConfiguration());
+        }
+    };
+
+    private final String name;
+
+    private final List<Configurer> configurers;
+
+    private volatile Processor processor = null;
+    private volatile XsltCompiler xsltCompiler = null;
+    private volatile DocumentBuilder documentBuilder = null;
+    private volatile XPathCache xpathCache = null;
+    private volatile StylesheetCache stylesheetCache = null;
+
+    public SaxonContext(final String name, final Configurer... configurers) {
+        this.name = name;
+        this.configurers = Collections.unmodifiableList(Arrays.asList(configurers));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Processor getProcessor() {
+        Processor p = processor;
+        if (p == null) {
+            synchronized (this) {
+                p = processor;
+                if (p == null) {
+                    p = new Processor(false);
+                    for (final Configurer configurer : configurers) {
+                        try {
+                            configurer.configure(p);
+                        } catch (final Exception e) {
+                            logger.error("Couldn't configure Saxon processor[" + name + "]!", e);
+                        }
+                    }
+                    processor = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    public XsltCompiler getXsltCompiler() {
+        XsltCompiler c = xsltCompiler;
+        if (c == null) {
+            synchronized (this) {
+                c = xsltCompiler;
+                if (c == null) {
+                    c = getProcessor().newXsltCompiler();
+                    xsltCompiler = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public DocumentBuilder getDocumentBuilder() {
+        DocumentBuilder b = documentBuilder;
+        if (b == null) {
+            synchronized (this) {
+                b = documentBuilder;
+                if (b == null) {
+                    b = getProcessor().newDocumentBuilder();
+                    documentBuilder = b;
+                }
+            }
+        }
+        return b;
+    }
+
+    public XPathCache getXPathCache() {
+        XPathCache c = xpathCache;
+        if (c == null) {
+            synchronized (this) {
+                c = xpathCache;
+                if (c == null) {
+                    c = new XPathCache(getProcessor());
+                    xpathCache = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public StylesheetCache getStylesheetCache() {
+        StylesheetCache c = stylesheetCache;
+        if (c == null) {
+            synchronized (this) {
+                c = stylesheetCache;
+                if (c == null) {
+                    c = new StylesheetCache(this);
+                    stylesheetCache = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public XdmNode buildDocument(final Source src) throws SaxonApiException {
+        final Source in = CompressedInput.detect(src);
+        try {
+            return getDocumentBuilder().build(in);
+        } finally {
+            CompressedInput.close(in);
+        }
+    }
+
+    public XsltExecutable buildTransformer(final XdmNode xslStylesheet) throws SaxonApiException {
+        final XsltExecutable xsl = getXsltCompiler().compile(xslStylesheet.asSource());
+        if (xslStylesheet.getBaseURI() != null)
+            SaxonMetrics.setName(xsl, xslStylesheet.getBaseURI().toString());
+        return xsl;
+    }
+
+    public XPathSelector xpathCompile(final XdmItem ctxt, final String xp, final Map<String, XdmValue> vars,
+            final Map<String, String> nss) throws SaxonApiException {
+        final XPathSelector xps = getXPathCache().compile(xp, (vars != null ? vars.keySet() : null), nss).load();
+        xps.setContextItem(ctxt);
+        if (vars != null) {
+            for (final Map.Entry<String, XdmValue> var : vars.entrySet())
+                xps.setVariable(new QName(var.getKey()), var.getValue());
+        }
+        return xps;
+    }
+
+    @Override
+    public String toString() {
+        return "SaxonContext[" + name + "]";
+    }
+}
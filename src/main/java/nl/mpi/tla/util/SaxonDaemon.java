@@ -0,0 +1,455 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.MessageListener2;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A resident transform daemon, which keeps the JVM, Saxon and the compiled
+ * stylesheets warm, and the thin client that forwards Transform style
+ * arguments (-s:, -xsl:, -o: and name=value parameters) to it.
+ *
+ * <pre>
+ * tlasaxon -daemon[:port]
+ * tlasaxon -client[:port] -s:in.xml -xsl:style.xsl [-o:out.xml] [name=value ...]
+ * tlasaxon -client[:port] -shutdown
+ * </pre>
+ *
+ * The daemon only listens on the loopback interface, and only accepts
+ * clients that present the token it writes, readable by its owner only, to
+ * ~/.tlasaxon/daemon-PORT.token. Without -o the result is streamed back to
+ * the standard output of the client, xsl:message output goes to its
+ * standard error. If no daemon is running, or other Transform options are
+ * given, the client transforms in process. Either way the stylesheet is
+ * compiled with the same configuration, i.e., with the extension functions
+ * and CoffeeSacks, and the parameters are untyped.
+ *
+ * @author menzowi
+ */
+public class SaxonDaemon {
+
+    private static final Logger logger = LoggerFactory.getLogger(SaxonDaemon.class.getName());
+
+    public static final int DEFAULT_PORT = 7478;
+
+    private static final int MAGIC = 0x544c4153; // TLAS
+    private static final int VERSION = 1;
+
+    // response frames
+    private static final byte OUT = 'O';
+    private static final byte ERR = 'E';
+    private static final byte EXIT = 'X';
+
+    private static final int CHUNK = 64 * 1024;
+
+    private final int port;
+
+    private final byte[] token;
+
+    private volatile boolean running = true;
+
+    private ServerSocket server = null;
+
+    public SaxonDaemon(final int port) {
+        this.port = port;
+        this.token = new byte[32];
+        new SecureRandom().nextBytes(token);
+    }
+
+    public static Path getTokenFile(final int port) {
+        return Paths.get(System.getProperty("user.home"), ".tlasaxon", "daemon-" + port + ".token");
+    }
+
+    protected static int getPort(final String arg) {
+        final int i = arg.indexOf(':');
+        return (i > 0 ? Integer.parseInt(arg.substring(i + 1)) : DEFAULT_PORT);
+    }
+
+    /**
+     * Run the daemon until it's shut down.
+     */
+    public void serve() throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        final Path tokenFile = writeToken();
+        final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+            final Thread t = new Thread(r, "SaxonDaemon-client");
+            t.setDaemon(true);
+            return t;
+        });
+        logger.info("daemon: listening on " + server.getLocalSocketAddress() + ", token in " + tokenFile);
+        try {
+            while (running) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (final IOException e) {
+                    if (running)
+                        logger.error("daemon: accept failed: " + e, e);
+                    continue;
+                }
+                pool.submit(() -> handle(socket));
+            }
+        } finally {
+            pool.shutdown();
+            Files.deleteIfExists(tokenFile);
+            logger.info("daemon: stopped");
+        }
+    }
+
+    protected Path writeToken() throws IOException {
+        final Path file = getTokenFile(port);
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (final UnsupportedOperationException e) {
+            Files.createFile(file);
+        }
+        Files.write(file, hex(token).getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (server != null)
+                server.close();
+        } catch (final IOException e) {
+            logger.warn("daemon: couldn't close the server socket: " + e, e);
+        }
+    }
+
+    protected void handle(final Socket socket) {
+        try (Socket s = socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("daemon: rejected a client speaking another protocol");
+                return;
+            }
+            final byte[] presented = new byte[in.readInt() & 0xff];
+            in.readFully(presented);
+            if (!MessageDigest.isEqual(token, presented)) {
+                logger.warn("daemon: rejected a client with an invalid token");
+                return;
+            }
+            final File cwd = new File(in.readUTF());
+            final String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++)
+                args[i] = in.readUTF();
+            int exit;
+            if (args.length == 1 && args[0].equals("-shutdown")) {
+                exit = 0;
+                shutdown();
+            } else {
+                exit = transform(cwd, args, out);
+            }
+            synchronized (out) {
+                out.writeByte(EXIT);
+                out.writeInt(exit);
+                out.flush();
+            }
+        } catch (final IOException e) {
+            logger.warn("daemon: client connection failed: " + e, e);
+        }
+    }
+
+    // run a single transform for a client
+    protected int transform(final File cwd, final String[] args, final DataOutputStream out) {
+        File src = null;
+        File xsl = null;
+        File res = null;
+        final List<String[]> params = new ArrayList<>();
+        for (final String arg : args) {
+            if (arg.startsWith("-s:"))
+                src = resolve(cwd, arg.substring(3));
+            else if (arg.startsWith("-xsl:"))
+                xsl = resolve(cwd, arg.substring(5));
+            else if (arg.startsWith("-o:"))
+                res = resolve(cwd, arg.substring(3));
+            else if (!arg.startsWith("-") && arg.indexOf('=') > 0)
+                params.add(new String[] { arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1) });
+            else {
+                message(out, "ERR: unsupported argument[" + arg + "]");
+                return 2;
+            }
+        }
+        if (src == null || xsl == null) {
+            message(out, "ERR: -s and -xsl are required");
+            return 2;
+        }
+        final SaxonListener listener = new SaxonListener("Saxon", null, src.getName()) {
+            @Override
+            protected boolean isEnabled(final Level level) {
+                return level != Level.DEBUG || logger.isDebugEnabled();
+            }
+
+            @Override
+            protected void write(final Level level, final String loc, final String text, final Throwable e) {
+                SaxonDaemon.message(out, (loc == null ? type + ": " + text : type + "[" + loc + "]: " + text));
+            }
+        };
+        final FrameOutputStream stdout = new FrameOutputStream(out);
+        final SaxonContext ctxt = Saxon.getCommandLineContext();
+        Serializer serializer = null;
+        boolean failed = true;
+        try {
+            final XsltTransformer transformer = ctxt.getStylesheetCache().get(xsl).load();
+            for (final String[] param : params)
+                transformer.setParameter(new QName(param[0]), Saxon.getCommandLineParameter(param[1]));
+            transformer.setMessageListener((MessageListener2) listener);
+            transformer.setErrorListener(listener);
+            transformer.setSource(new StreamSource(src));
+            serializer = (res != null ? ctxt.getProcessor().newSerializer(res)
+                    : ctxt.getProcessor().newSerializer(stdout));
+            transformer.setDestination(serializer);
+            transformer.transform();
+            serializer.close();
+            stdout.flush();
+            failed = false;
+            return 0;
+        } catch (final Exception e) {
+            logger.error("daemon: transform of [" + src + "] failed: " + e, e);
+            message(out, "ERR: transform failed: " + e.getMessage());
+            return 1;
+        } finally {
+            if (failed && serializer != null)
+                discard(serializer, res);
+        }
+    }
+
+    // close the output of a failed transform, and remove the partial file
+    private static void discard(final Serializer serializer, final File res) {
+        try {
+            serializer.close();
+        } catch (final Exception e) {
+            logger.debug("daemon: couldn't close the output of a failed transform: " + e);
+        }
+        if (res != null && res.exists() && !res.delete())
+            logger.warn("daemon: couldn't remove the partial output[" + res + "]");
+    }
+
+    /**
+     * Check if the daemon supports all the arguments, i.e., only -s:, -xsl:,
+     * -o: and name=value parameters.
+     */
+    public static boolean isSupported(final String[] args) {
+        for (final String arg : args) {
+            if (!(arg.startsWith("-s:") || arg.startsWith("-xsl:") || arg.startsWith("-o:")
+                    || (!arg.startsWith("-") && arg.indexOf('=') > 0)))
+                return false;
+        }
+        return true;
+    }
+
+    protected static File resolve(final File cwd, final String path) {
+        final File file = new File(path);
+        return (file.isAbsolute() ? file : new File(cwd, path));
+    }
+
+    protected static void message(final DataOutputStream out, final String msg) {
+        frame(out, ERR, (msg + "\n").getBytes(StandardCharsets.UTF_8), 0, -1);
+    }
+
+    protected static void frame(final DataOutputStream out, final byte type, final byte[] buf, final int off,
+            final int len) {
+        final int n = (len < 0 ? buf.length : len);
+        synchronized (out) {
+            try {
+                out.writeByte(type);
+                out.writeInt(n);
+                out.write(buf, off, n);
+            } catch (final IOException e) {
+                logger.debug("daemon: couldn't write to client: " + e);
+            }
+        }
+    }
+
+    // buffers the result and sends it in frames
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buf = new byte[CHUNK];
+        private int count = 0;
+
+        FrameOutputStream(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) {
+            if (count == buf.length)
+                flush();
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, int off, int len) {
+            while (len > 0) {
+                if (count == buf.length)
+                    flush();
+                final int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (count > 0)
+                frame(out, OUT, buf, 0, count);
+            count = 0;
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
+    /**
+     * Forward the arguments to a running daemon, and relay its output.
+     *
+     * @return The exit code of the transform, or -1 if no daemon is running
+     */
+    public static int client(final int port, final String[] args) throws IOException {
+        final Path tokenFile = getTokenFile(port);
+        if (!Files.isReadable(tokenFile))
+            return -1;
+        final byte[] token = unhex(new String(Files.readAllBytes(tokenFile), StandardCharsets.US_ASCII).trim());
+        final Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        } catch (final ConnectException e) {
+            return -1;
+        }
+        try (Socket s = socket;
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(token.length);
+            out.write(token);
+            out.writeUTF(System.getProperty("user.dir"));
+            out.writeInt(args.length);
+            for (final String arg : args)
+                out.writeUTF(arg);
+            out.flush();
+            final PrintStream stdout = System.out;
+            final PrintStream stderr = System.err;
+            final byte[] buf = new byte[CHUNK];
+            while (true) {
+                final int type;
+                try {
+                    type = in.readByte();
+                } catch (final java.io.EOFException e) {
+                    stderr.println("ERR: the daemon closed the connection");
+                    return 1;
+                }
+                if (type == EXIT) {
+                    stdout.flush();
+                    return in.readInt();
+                }
+                int len = in.readInt();
+                final OutputStream dst = (type == OUT ? stdout : stderr);
+                while (len > 0) {
+                    final int n = in.read(buf, 0, Math.min(len, buf.length));
+                    if (n < 0)
+                        throw new java.io.EOFException();
+                    dst.write(buf, 0, n);
+                    len -= n;
+                }
+            }
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : bytes)
+            sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    private static byte[] unhex(final String s) {
+        final byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+
+    /**
+     * Entry point for the -daemon and -client modes of the CLI.
+     *
+     * @return The exit code
+     */
+    public static int run(final String[] args) {
+        try {
+            if (args[0].startsWith("-daemon")) {
+                new SaxonDaemon(getPort(args[0])).serve();
+                return 0;
+            }
+            final String[] rest = Arrays.copyOfRange(args, 1, args.length);
+            final boolean shutdown = (rest.length == 1 && rest[0].equals("-shutdown"));
+            if (shutdown || isSupported(rest)) {
+                final int exit = client(getPort(args[0]), rest);
+                if (exit != -1)
+                    return exit;
+                if (shutdown)
+                    return 0;
+                logger.debug("client: no daemon running, transforming in process");
+            } else {
+                logger.debug("client: options the daemon doesn't support, transforming in process");
+            }
+            Saxon.main(rest);
+            return 0;
+        } catch (final IOException | NumberFormatException e) {
+            logger.error(args[0] + " failed: " + e, e);
+            return 1;
+        }
+    }
+}
@@ -16,7 +16,6 @@
  */
 package nl.mpi.tla.util;
 
-import com.twmacinta.util.MD5;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -24,16 +23,23 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
-import java.util.function.BiPredicate;
-import java.util.stream.Stream;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.SequenceType;
 import net.sf.saxon.value.StringValue;
 import net.sf.saxon.om.StructuredQName; 
+import net.sf.saxon.om.Item;
 import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.lib.ExtensionFunctionCall;
 import net.sf.saxon.lib.ExtensionFunctionDefinition;
@@ -43,11 +49,11 @@ import net.sf.saxon.om.AxisInfo;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.tree.NamespaceNode;
 import net.sf.saxon.tree.iter.AxisIterator;
 import net.sf.saxon.type.BuiltInAtomicType;
@@ -78,6 +84,75 @@ public final class SaxonExtensionFunctions {
         config.registerExtensionFunction(new FindFirstFileDefinition());
         config.registerExtensionFunction(new MD5Definition());
         config.registerExtensionFunction(new FileSizeDefinition());
+        config.registerExtensionFunction(new HashDefinition());
+        config.registerExtensionFunction(new IndexDefinition());
+    }
+
+    /**
+     * The in-scope namespaces of a node, to evaluate expressions passed as
+     * strings with.
+     */
+    static Map<String, String> namespaces(final NodeInfo node) {
+        final Map<String, String> nss = new HashMap<>();
+        final AxisIterator iter = node.iterateAxis(AxisInfo.NAMESPACE);
+        NamespaceNode n = (NamespaceNode) iter.next();
+        while (n != null) {
+            nss.put(n.getLocalPart(), n.getStringValue());
+            n = (NamespaceNode) iter.next();
+        }
+        return nss;
+    }
+
+    /**
+     * The body of an extension function call.
+     */
+    interface Call {
+        Sequence call() throws Exception;
+    }
+
+    /**
+     * Handles the failure of an extension function call.
+     */
+    interface OnError {
+        Sequence failed(Exception e);
+    }
+
+    /**
+     * Run the body of an extension function call and report it to the
+     * metrics, also when it fails. The handled exceptions are passed to the
+     * error handler, any other is passed on.
+     */
+    static Sequence measured(final String name, final Class<? extends Exception> handled, final Call call,
+            final OnError onError) throws XPathException {
+        final long start = SaxonMetrics.start();
+        boolean failed = true;
+        try {
+            final Sequence seq = call.call();
+            failed = false;
+            return seq;
+        } catch (final Exception e) {
+            if (handled.isInstance(e))
+                return onError.failed(e);
+            if (e instanceof XPathException)
+                throw (XPathException) e;
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            throw new XPathException(e);
+        } finally {
+            SaxonMetrics.stop(name, start, failed);
+        }
+    }
+
+    /**
+     * Run the body of an extension function call, a failure is logged and
+     * the fallback is returned.
+     */
+    static Sequence measured(final String name, final Class<? extends Exception> handled, final Sequence fallback,
+            final Call call) throws XPathException {
+        return measured(name, handled, call, e -> {
+            logger.error(name + " failed!", e);
+            return fallback;
+        });
     }
 
     // -----------------------------------------------------------------------
@@ -113,15 +188,11 @@ public final class SaxonExtensionFunctions {
             return new ExtensionFunctionCall() {
                 @Override
                 public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
-                    Sequence seq = null;
-                    try {
+                    return measured("sx:fileExists", Exception.class, null, () -> {
                         final URI uri = new URI(((StringValue) arguments[0].head()).getStringValue());
                         final boolean exists = (new java.io.File(uri)).exists();
-                        seq = (new XdmAtomicValue(exists)).getUnderlyingValue();
-                    } catch (final Exception e) {
-                        logger.error("sx:fileExists failed!", e);
-                    }
-                    return seq;
+                        return (new XdmAtomicValue(exists)).getUnderlyingValue();
+                    });
                 }
             };
         }
@@ -160,19 +231,18 @@ public final class SaxonExtensionFunctions {
             return new ExtensionFunctionCall() {
                 @Override
                 public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
-                    Sequence seq = null;
-                    try {
+                    return measured("sx:uuid", Exception.class, () -> {
                         if (arguments.length > 0) {
                             final String uniq = ((StringValue) arguments[0].head()).getStringValue();
                             //System.err.println("DBG? sx:uuid("+uniq+")");
                         } else {
                             //System.err.println("DBG? sx:uuid(NULL)");
                         }
-                        seq = (new XdmAtomicValue(UUID.randomUUID().toString())).getUnderlyingValue();
-                    } catch (final Exception e) {
+                        return (new XdmAtomicValue(UUID.randomUUID().toString())).getUnderlyingValue();
+                    }, e -> {
                         //logger.error("sx:uuid failed!", e);
-                    }
-                    return seq;
+                        return null;
+                    });
                 }
             };
         }
@@ -211,8 +281,7 @@ public final class SaxonExtensionFunctions {
             return new ExtensionFunctionCall() {
                 @Override
                 public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
-                    Sequence seq = null;
-                    try {
+                    return measured("sx:checkURL", Exception.class, null, () -> {
                         final String url = ((StringValue) arguments[0].head()).getStringValue();
                         boolean valid = true;
                         try {
@@ -220,11 +289,8 @@ public final class SaxonExtensionFunctions {
                         } catch (final MalformedURLException e) {
                             valid = false;
                         }
-                        seq = (new XdmAtomicValue(valid)).getUnderlyingValue();
-                    } catch (final Exception e) {
-                        logger.error("sx:checkURL failed!", e);
-                    }
-                    return seq;
+                        return (new XdmAtomicValue(valid)).getUnderlyingValue();
+                    });
                 }
             };
         }
@@ -235,6 +301,60 @@ public final class SaxonExtensionFunctions {
     // -----------------------------------------------------------------------
 
     public static final class EvaluateDefinition extends ExtensionFunctionDefinition {
+
+        /**
+         * All live expression caches, to report on and to resize.
+         */
+        private static final Set<XPathCache> caches = Collections
+                .synchronizedSet(Collections.newSetFromMap(new WeakHashMap<XPathCache, Boolean>()));
+
+        private static volatile int cacheSize = XPathCache.DEFAULT_MAX_SIZE;
+
+        /**
+         * One Processor, and its compiled expressions, per Configuration.
+         */
+        private final ConcurrentHashMap<Configuration, XPathCache> perConfiguration = new ConcurrentHashMap<>();
+
+        protected XPathCache getCache(final Configuration config) {
+            return perConfiguration.computeIfAbsent(config, c -> {
+                final XPathCache cache = new XPathCache(new Processor(c), cacheSize);
+                caches.add(cache);
+                return cache;
+            });
+        }
+
+        public static void setCacheSize(final int size) {
+            cacheSize = size;
+            synchronized (caches) {
+                for (final XPathCache cache : caches)
+                    cache.setMaxSize(size);
+            }
+        }
+
+        public static long getCacheHits() {
+            long hits = 0;
+            synchronized (caches) {
+                for (final XPathCache cache : caches)
+                    hits += cache.getHits();
+            }
+            return hits;
+        }
+
+        public static long getCacheMisses() {
+            long misses = 0;
+            synchronized (caches) {
+                for (final XPathCache cache : caches)
+                    misses += cache.getMisses();
+            }
+            return misses;
+        }
+
+        public static double getCacheHitRatio() {
+            final long h = getCacheHits();
+            final long t = h + getCacheMisses();
+            return (t == 0 ? 0.0 : (double) h / t);
+        }
+
         public StructuredQName getFunctionQName() {
             return new StructuredQName("sx", "java:nl.mpi.tla.saxon", "evaluate");
         }
@@ -264,29 +384,18 @@ public final class SaxonExtensionFunctions {
             return new ExtensionFunctionCall() {
                 @Override
                 public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
-                    Sequence seq = null;
-                    try {
+                    return measured("sx:evaluate", SaxonApiException.class, null, () -> {
                         final NodeInfo node = (NodeInfo) arguments[0].head();
                         final StringValue path = (StringValue) arguments[1].head();
                         NodeInfo ns = node;
                         if (arguments.length == 3)
                             ns = (NodeInfo) arguments[2].head();
-                        final Processor processor = new Processor(context.getConfiguration());
-                        final XPathCompiler xpc = processor.newXPathCompiler();
-                        final AxisIterator iter = ns.iterateAxis(AxisInfo.NAMESPACE);
-                        NamespaceNode n = (NamespaceNode) iter.next();
-                        while (n != null) {
-                            xpc.declareNamespace(n.getLocalPart(), n.getStringValue());
-                            n = (NamespaceNode) iter.next();
-                        }
-                        final XPathExecutable xpe = xpc.compile(path.getStringValue());
+                        final Map<String, String> nss = namespaces(ns);
+                        final XPathExecutable xpe = getCache(context.getConfiguration()).compile(path.getStringValue(), null, nss);
                         final XPathSelector xps = xpe.load();
                         xps.setContextItem(new XdmNode(node));
-                        seq = xps.evaluate().getUnderlyingValue();
-                    } catch (final SaxonApiException e) {
-                        logger.error("sx:evaluate failed!", e);
-                    }
-                    return seq;
+                        return xps.evaluate().getUnderlyingValue();
+                    });
                 }
             };
         }
@@ -322,14 +431,9 @@ public final class SaxonExtensionFunctions {
         }
 
         protected Optional<Path> findBagBase(final Path bag) {
-            try (Stream<Path> stream = Files.find(bag, Integer.MAX_VALUE, new BiPredicate<Path, BasicFileAttributes>() {
-                @Override
-                public boolean test(Path path, BasicFileAttributes attr) {
-                    return path.toString().endsWith(System.getProperty("file.separator") + "metadata"
-                            + System.getProperty("file.separator") + "record.cmdi");
-                }
-            })) {
-                return stream.findFirst();
+            try {
+                return FileIndex.findFirst(bag, System.getProperty("file.separator") + "metadata"
+                        + System.getProperty("file.separator") + "record.cmdi");
             } catch (final Exception e) {
                 logger.error("flat:findBagBase failed!", e);
             }
@@ -340,8 +444,7 @@ public final class SaxonExtensionFunctions {
             return new ExtensionFunctionCall() {
                 @Override
                 public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
-                    Sequence seq = EmptySequence.getInstance();
-                    try {
+                    return measured("flat:findBagBase", Exception.class, EmptySequence.getInstance(), () -> {
                         final String dir = arguments[0].head().getStringValue();
                         Path p = Paths.get(dir);
                         if (Files.isDirectory(p)) {
@@ -350,13 +453,11 @@ public final class SaxonExtensionFunctions {
                             if (r != null && r.isPresent()) {
                                 p = r.get();
                                 p = p.getParent().getParent();
-                                seq = new XdmAtomicValue(p.toString()).getUnderlyingValue();
+                                return new XdmAtomicValue(p.toString()).getUnderlyingValue();
                             }
                         }
-                    } catch (final Exception e) {
-                        logger.error("flat:findBagBase failed!", e);
-                    }
-                    return seq;
+                        return EmptySequence.getInstance();
+                    });
                 }
             };
         }
@@ -392,13 +493,8 @@ public final class SaxonExtensionFunctions {
         }
 
         protected Optional<Path> findFirstFile(final Path dir, final String fle) {
-            try (Stream<Path> stream = Files.find(dir, Integer.MAX_VALUE, new BiPredicate<Path, BasicFileAttributes>() {
-                @Override
-                public boolean test(Path path, BasicFileAttributes attr) {
-                    return path.toString().endsWith(fle);
-                }
-            })) {
-                return stream.findFirst();
+            try {
+                return FileIndex.findFirst(dir, fle);
             } catch (final Exception e) {
                 logger.error("sx:findFirstFile failed!", e);
             }
@@ -409,8 +505,7 @@ public final class SaxonExtensionFunctions {
             return new ExtensionFunctionCall() {
                 @Override
                 public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
-                    Sequence seq = EmptySequence.getInstance();
-                    try {
+                    return measured("sx:findFirstFile", Exception.class, EmptySequence.getInstance(), () -> {
                         final String dir = arguments[0].head().getStringValue();
                         Path p = Paths.get(dir);
                         if (Files.isDirectory(p)) {
@@ -419,13 +514,11 @@ public final class SaxonExtensionFunctions {
                             final Optional<Path> r = findFirstFile(p, fle);
                             if (r != null && r.isPresent()) {
                                 p = r.get();
-                                seq = new XdmAtomicValue(p.toString()).getUnderlyingValue();
+                                return new XdmAtomicValue(p.toString()).getUnderlyingValue();
                             }
                         }
-                    } catch (final Exception e) {
-                        logger.error("sx:findFirstFile failed!", e);
-                    }
-                    return seq;
+                        return EmptySequence.getInstance();
+                    });
                 }
             };
         }
@@ -464,17 +557,73 @@ public final class SaxonExtensionFunctions {
             return new ExtensionFunctionCall() {
                 @Override
                 public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
-                    Sequence seq = null;
-                    try {
+                    return measured("sx:md5", Exception.class, () -> {
                         final URI uri = new URI(((StringValue) arguments[0].head()).getStringValue());
-                        final String hash = MD5.asHex(MD5.getHash(new java.io.File(uri)));
-                        seq = (new XdmAtomicValue(hash)).getUnderlyingValue();
-                    } catch (final Exception e) {
+                        final String hash = FileDigests.getInstance().digest(Paths.get(uri), "MD5");
+                        return (new XdmAtomicValue(hash)).getUnderlyingValue();
+                    }, e -> {
                         System.err.println("ERR: [" + ((StringValue) arguments[0].head()).getStringValue() + "]:"
                                 + e.getMessage());
                         e.printStackTrace(System.err);
-                    }
-                    return seq;
+                        return null;
+                    });
+                }
+            };
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // sx:hash, one digest for each requested algorithm, in order
+    // -----------------------------------------------------------------------
+
+    public static final class HashDefinition extends ExtensionFunctionDefinition {
+        public StructuredQName getFunctionQName() {
+            return new StructuredQName("sx", "java:nl.mpi.tla.saxon", "hash");
+        }
+
+        public int getMinimumNumberOfArguments() {
+            return 2;
+        }
+
+        public int getMaximumNumberOfArguments() {
+            return 2;
+        }
+
+        public SequenceType[] getArgumentTypes() {
+            return new SequenceType[] { SequenceType.makeSequenceType(BuiltInAtomicType.ANY_URI, StaticProperty.EXACTLY_ONE),
+                    SequenceType.makeSequenceType(BuiltInAtomicType.STRING, StaticProperty.ALLOWS_ZERO_OR_MORE) };
+        }
+
+        public SequenceType getResultType(final SequenceType[] suppliedArgTypes) {
+            return SequenceType.makeSequenceType(BuiltInAtomicType.STRING, StaticProperty.ALLOWS_ZERO_OR_MORE);
+        }
+
+        public boolean dependsOnFocus() {
+            return false;
+        }
+
+        public ExtensionFunctionCall makeCallExpression() {
+            return new ExtensionFunctionCall() {
+                @Override
+                public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
+                    return measured("sx:hash", Exception.class, EmptySequence.getInstance(), () -> {
+                        final URI uri = new URI(((StringValue) arguments[0].head()).getStringValue());
+                        // the algorithms can be passed as a sequence and/or as a whitespace or comma separated list
+                        final List<String> algs = new ArrayList<>();
+                        final SequenceIterator iter = arguments[1].iterate();
+                        for (Item alg = iter.next(); alg != null; alg = iter.next()) {
+                            for (final String a : alg.getStringValue().split("[\\s,]+")) {
+                                if (!a.isEmpty())
+                                    algs.add(a);
+                            }
+                        }
+                        if (algs.isEmpty())
+                            return EmptySequence.getInstance();
+                        final List<XdmAtomicValue> hashes = new ArrayList<>();
+                        for (final String hash : FileDigests.getInstance().digests(Paths.get(uri), algs))
+                            hashes.add(new XdmAtomicValue(hash));
+                        return new XdmValue(hashes).getUnderlyingValue();
+                    });
                 }
             };
         }
@@ -513,16 +662,75 @@ public final class SaxonExtensionFunctions {
             return new ExtensionFunctionCall() {
                 @Override
                 public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
-                    Sequence seq = null;
-                    try {
+                    return measured("sx:fileSize", Exception.class, () -> {
                         final URI uri = new URI(((StringValue) arguments[0].head()).getStringValue());
                         final File file = new java.io.File(uri);
-                        seq = (new XdmAtomicValue(file.length())).getUnderlyingValue();
-                    } catch (final Exception e) {
+                        return (new XdmAtomicValue(file.length())).getUnderlyingValue();
+                    }, e -> {
                         System.err.println("ERR: ["+((StringValue) arguments[0].head()).getStringValue()+"]:"+e.getMessage());
                         e.printStackTrace(System.err);
-                    }
-                    return seq;
+                        return null;
+                    });
+                }
+            };
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // sx:index
+    // -----------------------------------------------------------------------
+
+    /**
+     * sx:index($doc as node(), $nodes as xs:string, $key as xs:string,
+     * $values as xs:anyAtomicType*[, $ns as node()?]) as node()* looks up the
+     * nodes of the document of $doc with any of the values as key, using an
+     * XdmIndex built on first use. The expressions use the in-scope
+     * namespaces of $ns, or else of $doc.
+     */
+    public static final class IndexDefinition extends ExtensionFunctionDefinition {
+        public StructuredQName getFunctionQName() {
+            return new StructuredQName("sx", "java:nl.mpi.tla.saxon", "index");
+        }
+
+        public int getMinimumNumberOfArguments() {
+            return 4;
+        }
+
+        public int getMaximumNumberOfArguments() {
+            return 5;
+        }
+
+        public SequenceType[] getArgumentTypes() {
+            return new SequenceType[] { SequenceType.SINGLE_NODE, SequenceType.SINGLE_STRING,
+                    SequenceType.SINGLE_STRING, SequenceType.ATOMIC_SEQUENCE, SequenceType.OPTIONAL_NODE };
+        }
+
+        public SequenceType getResultType(final SequenceType[] suppliedArgTypes) {
+            return SequenceType.NODE_SEQUENCE;
+        }
+
+        public boolean dependsOnFocus() {
+            return false;
+        }
+
+        public ExtensionFunctionCall makeCallExpression() {
+            return new ExtensionFunctionCall() {
+                @Override
+                public Sequence call(final XPathContext context, final Sequence[] arguments) throws XPathException {
+                    return measured("sx:index", SaxonApiException.class, EmptySequence.getInstance(), () -> {
+                        final NodeInfo node = (NodeInfo) arguments[0].head();
+                        final String nodes = ((StringValue) arguments[1].head()).getStringValue();
+                        final String key = ((StringValue) arguments[2].head()).getStringValue();
+                        NodeInfo ns = node;
+                        if (arguments.length == 5 && arguments[4].head() != null)
+                            ns = (NodeInfo) arguments[4].head();
+                        final XdmIndex index = XdmIndex.get(new XdmNode(node), nodes, key, namespaces(ns));
+                        final List<String> keys = new ArrayList<>();
+                        final SequenceIterator iter = arguments[3].iterate();
+                        for (Item value = iter.next(); value != null; value = iter.next())
+                            keys.add(value.getStringValue());
+                        return (keys.size() == 1 ? index.lookup(keys.get(0)) : index.lookup(keys)).getUnderlyingValue();
+                    });
                 }
             };
         }
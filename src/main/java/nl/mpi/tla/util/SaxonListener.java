@@ -16,6 +16,10 @@
  */
 package nl.mpi.tla.util;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.SourceLocator;
 import javax.xml.transform.TransformerException;
@@ -23,6 +27,7 @@ import net.sf.saxon.s9api.MessageListener;
 import net.sf.saxon.s9api.MessageListener2;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -39,6 +44,11 @@ public class SaxonListener implements MessageListener, MessageListener2, ErrorLi
     protected String mdc  = "sip";
     protected String id   = null;
 
+    // the capacity of the message capture, 0 means no capture
+    protected int capture = 0;
+    private ArrayDeque<Message> captured = null;
+    private final long[] counts = new long[Level.values().length];
+
     public SaxonListener() {
         this(null,null,null,null);
     }
@@ -84,17 +94,217 @@ public class SaxonListener implements MessageListener, MessageListener2, ErrorLi
                 MDC.put(mdc,this.id);
     }
     
+    /**
+     * The levels of the messages, which can be selected by starting the
+     * message with INF:, WRN:, ERR: or DBG:.
+     */
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    /**
+     * Determine the level selected by the prefix of a message, without
+     * copying the message.
+     *
+     * @return The level, or null if the message has no known prefix
+     */
+    protected static Level getLevel(String msg) {
+        if (msg == null || msg.length() < 5 || msg.charAt(3) != ':' || msg.charAt(4) != ' ')
+            return null;
+        if (msg.regionMatches(0, "INF", 0, 3))
+            return Level.INFO;
+        if (msg.regionMatches(0, "WRN", 0, 3))
+            return Level.WARN;
+        if (msg.regionMatches(0, "ERR", 0, 3))
+            return Level.ERROR;
+        if (msg.regionMatches(0, "DBG", 0, 3))
+            return Level.DEBUG;
+        return null;
+    }
+
+    protected boolean isEnabled(Level level) {
+        switch (level) {
+            case ERROR: return logger.isErrorEnabled();
+            case WARN:  return logger.isWarnEnabled();
+            case INFO:  return logger.isInfoEnabled();
+            default:    return logger.isDebugEnabled();
+        }
+    }
+
+    /**
+     * Handle a message, the level is checked before the message is
+     * formatted or the location is determined.
+     *
+     * @param msg The message, possibly with a level prefix
+     * @param sl The location, may be null
+     * @param e The cause, may be null
+     * @param fallback The level of a message without a prefix, or null if
+     *        those shouldn't be handled
+     * @return false if the message has no prefix and there is no fallback
+     */
+    protected boolean handle(String msg, SourceLocator sl, Throwable e, Level fallback) {
+        return handle(msg, sl, e, fallback, null);
+    }
+
+    protected boolean handle(String msg, SourceLocator sl, Throwable e, Level fallback, QName errorCode) {
+        final Level level = getLevel(msg);
+        if (level == null && fallback == null)
+            return false;
+        final Level lvl = (level != null ? level : fallback);
+        if (capture > 0)
+            capture(lvl, (level != null ? msg.substring(5) : msg), getLocation(sl),
+                    (errorCode != null ? errorCode.getEQName() : null));
+        if (!isEnabled(lvl))
+            return true;
+        final String text = (level != null ? msg.substring(5) : msg);
+        // prefixed INF messages are logged without location
+        final String loc = (level == Level.INFO ? null : getLocation(sl));
+        log(lvl, loc, text, e);
+        return true;
+    }
+
+    /**
+     * Log a message that passed the level check. Subclasses can override
+     * this to divert the messages, e.g., to a queue.
+     */
+    protected void log(Level level, String loc, String text, Throwable e) {
+        setID();
+        write(level, loc, text, e);
+    }
+
+    /**
+     * Write a message to the logger.
+     */
+    protected void write(Level level, String loc, String text, Throwable e) {
+        final String msg = (loc == null ? type + ": " + text : type + "[" + loc + "]: " + text);
+        switch (level) {
+            case ERROR: logger.error(msg, e); break;
+            case WARN:  logger.warn(msg, e);  break;
+            case INFO:  logger.info(msg, e);  break;
+            default:    logger.debug(msg, e); break;
+        }
+    }
+
+    /**
+     * A captured message.
+     */
+    public static final class Message {
+        private final Level level;
+        private final String text;
+        private final String location;
+        private final String errorCode;
+        private final String id;
+
+        public Message(Level level, String text, String location, String errorCode, String id) {
+            this.level = level;
+            this.text = text;
+            this.location = location;
+            this.errorCode = errorCode;
+            this.id = id;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * @return The error code in Q{uri}local notation, or null
+         */
+        public String getErrorCode() {
+            return errorCode;
+        }
+
+        /**
+         * @return The id of the transform, i.e., the MDC value, or null
+         */
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return level + (id != null ? "[" + id + "]" : "") + "[" + location + "]"
+                    + (errorCode != null ? "[" + errorCode + "]" : "") + ": " + text;
+        }
+    }
+
+    /**
+     * Capture the messages, independent of the log level, in a ring buffer
+     * keeping the last messages, and count them per level.
+     *
+     * @param capacity The number of messages to keep, 0 turns capturing off
+     */
+    public synchronized void setCapture(int capacity) {
+        this.capture = Math.max(0, capacity);
+        this.captured = (capture > 0 ? new ArrayDeque<Message>(Math.min(capture, 64)) : null);
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = 0;
+    }
+
+    public int getCapture() {
+        return capture;
+    }
+
+    protected synchronized void capture(Level level, String text, String loc, String errorCode) {
+        if (captured == null)
+            return;
+        counts[level.ordinal()]++;
+        if (captured.size() >= capture)
+            captured.removeFirst();
+        captured.addLast(new Message(level, text, loc, errorCode, (id != null ? id : MDC.get(mdc))));
+    }
+
+    protected void capture(TransformerException te, Level fallback) {
+        if (capture <= 0)
+            return;
+        final String msg = te.getMessage();
+        final Level level = getLevel(msg);
+        String code = null;
+        if (te instanceof XPathException && ((XPathException) te).getErrorCodeQName() != null)
+            code = ((XPathException) te).getErrorCodeQName().getEQName();
+        capture((level != null ? level : fallback), (level != null ? msg.substring(5) : msg),
+                te.getLocationAsString(), code);
+    }
+
+    /**
+     * Get the captured messages, oldest first.
+     */
+    public synchronized List<Message> getMessages() {
+        if (captured == null)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(new ArrayList<>(captured));
+    }
+
+    /**
+     * Get the number of captured messages of a level, including those that
+     * no longer fit in the ring buffer.
+     */
+    public synchronized long getCount(Level level) {
+        return counts[level.ordinal()];
+    }
+
+    public boolean hasErrors() {
+        return getCount(Level.ERROR) > 0;
+    }
+
+    /**
+     * Called when the transform this listener is attached to has finished.
+     */
+    public void close() {
+    }
+
     protected boolean handleMessage(String msg, String loc, Exception e) {
-        if (msg.startsWith("INF: "))
-            logger.info(type+": "+msg.replace("INF: ", ""));
-        else if (msg.startsWith("WRN: "))
-            logger.warn(type+"["+loc+"]: "+msg.replace("WRN: ", ""), e);
-        else if (msg.startsWith("ERR: "))
-            logger.error(type+"["+loc+"]: "+msg.replace("ERR: ", ""), e);
-        else if (msg.startsWith("DBG: "))
-            logger.debug(type+"["+loc+"]: "+msg.replace("DBG: ", ""), e);
-        else
+        final Level level = getLevel(msg);
+        if (level == null)
             return false;
+        if (isEnabled(level))
+            log(level, (level == Level.INFO ? null : loc), msg.substring(5), (level == Level.INFO ? null : e));
         return true;
     }
     
@@ -104,6 +314,7 @@ public class SaxonListener implements MessageListener, MessageListener2, ErrorLi
 
     @Override
     public void warning(TransformerException te) throws TransformerException {
+        capture(te, Level.WARN);
         setID();
         if (!handleException(te))
             logger.warn(type+": "+te.getMessageAndLocation(), te);
@@ -111,6 +322,7 @@ public class SaxonListener implements MessageListener, MessageListener2, ErrorLi
 
     @Override
     public void error(TransformerException te) throws TransformerException {
+        capture(te, Level.ERROR);
         setID();
         if (!handleException(te))
             logger.error(type+": "+te.getMessageAndLocation(), te);
@@ -118,37 +330,26 @@ public class SaxonListener implements MessageListener, MessageListener2, ErrorLi
 
     @Override
     public void fatalError(TransformerException te) throws TransformerException {
+        capture(te, Level.ERROR);
         setID();
         if (!handleException(te))
             logger.error(type+": "+te.getMessageAndLocation(), te);
     }
     
     protected String getLocation(SourceLocator sl) {
-        if (sl.getColumnNumber()<0)
+        if (sl == null || sl.getColumnNumber()<0)
             return "-1";
         return sl.getSystemId()+":"+sl.getLineNumber()+":"+sl.getColumnNumber();
     }
 
     @Override
     public void message(XdmNode xn, boolean bln, SourceLocator sl) {
-        setID();
-        if (!handleMessage(xn.getStringValue(),getLocation(sl),null)) {
-            if (bln)
-                logger.error(type+"["+getLocation(sl)+"]: "+xn.getStringValue());
-            else
-                logger.info(type+"["+getLocation(sl)+"]: "+xn.getStringValue());
-        }
+        handle(xn.getStringValue(), sl, null, (bln ? Level.ERROR : Level.INFO));
     }
     
     @Override
     public void message(XdmNode xn, QName errorCode, boolean terminate, SourceLocator sl) {
-        setID();
-        if (!handleMessage(xn.getStringValue(),getLocation(sl),null)) {
-            if (terminate)
-                logger.error(type+"["+getLocation(sl)+"]: "+xn.getStringValue());
-            else
-                logger.info(type+"["+getLocation(sl)+"]: "+xn.getStringValue());
-        }
+        handle(xn.getStringValue(), sl, null, (terminate ? Level.ERROR : Level.INFO), errorCode);
     }
 
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import net.sf.saxon.s9api.XsltExecutable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional instrumentation of the Saxon helpers, extension functions and
+ * transforms: per operation counts, error counts and a latency histogram.
+ * When disabled, which is the default unless the nl.mpi.tla.saxon.metrics
+ * system property is true, instrumented code only reads a volatile flag.
+ * The data is exposed through a JMX MBean and can be forwarded to sinks.
+ *
+ * @author menzowi
+ */
+public final class SaxonMetrics implements SaxonMetricsMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(SaxonMetrics.class.getName());
+
+    public static final String ENABLED_PROPERTY = "nl.mpi.tla.saxon.metrics";
+
+    public static final String OBJECT_NAME = "nl.mpi.tla.util:type=SaxonMetrics";
+
+    /**
+     * A receiver of every recorded measurement, e.g., to forward them to an
+     * external metrics system.
+     */
+    public interface Sink {
+        void record(String operation, long nanos, boolean error);
+    }
+
+    /**
+     * The statistics of a single operation.
+     */
+    public static final class Stats {
+        // bucket i counts latencies in [2^i, 2^(i+1)) nanoseconds
+        private static final int BUCKETS = 64;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(final long nanos, final boolean error) {
+            count.increment();
+            if (error)
+                errors.increment();
+            total.add(nanos);
+            long m = max.get();
+            while (nanos > m && !max.compareAndSet(m, nanos))
+                m = max.get();
+            histogram.incrementAndGet(nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getTotalNanos() {
+            return total.sum();
+        }
+
+        public long getMaxNanos() {
+            return max.get();
+        }
+
+        public double getMeanNanos() {
+            final long c = getCount();
+            return (c == 0 ? 0.0 : (double) getTotalNanos() / c);
+        }
+
+        /**
+         * Get an upper bound of a latency percentile, with the precision of
+         * the power of two buckets of the histogram.
+         *
+         * @param percentile The percentile, between 0 and 100
+         * @return The upper bound in nanoseconds
+         */
+        public long getPercentileNanos(final double percentile) {
+            long c = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                c += histogram.get(i);
+            if (c == 0)
+                return 0;
+            final long rank = (long) Math.ceil(c * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank && seen > 0)
+                    return Math.min(i >= 62 ? Long.MAX_VALUE : (2L << i) - 1, getMaxNanos());
+            }
+            return getMaxNanos();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + ", errors=" + getErrors() + ", mean=" + format(getMeanNanos()) + ", p50="
+                    + format(getPercentileNanos(50)) + ", p99=" + format(getPercentileNanos(99)) + ", max="
+                    + format(getMaxNanos());
+        }
+
+        private static String format(final double nanos) {
+            return String.format("%.3fms", nanos / 1000000.0);
+        }
+    }
+
+    private static final long DISABLED = Long.MIN_VALUE;
+
+    private static volatile boolean enabled = false;
+
+    private static final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    private static final List<Sink> sinks = new CopyOnWriteArrayList<>();
+
+    private static final Map<XsltExecutable, String> names = Collections.synchronizedMap(new WeakHashMap<XsltExecutable, String>());
+
+    private static final SaxonMetrics mbean = new SaxonMetrics();
+
+    private static boolean registered = false;
+
+    static {
+        if (Boolean.getBoolean(ENABLED_PROPERTY))
+            enable(true);
+    }
+
+    private SaxonMetrics() {
+    }
+
+    /**
+     * Start measuring an operation.
+     *
+     * @return The start time, to pass to stop()
+     */
+    public static long start() {
+        return (enabled ? System.nanoTime() : DISABLED);
+    }
+
+    /**
+     * Stop measuring an operation that succeeded.
+     */
+    public static void stop(final String operation, final long start) {
+        if (start != DISABLED)
+            record(operation, System.nanoTime() - start, false);
+    }
+
+    /**
+     * Stop measuring an operation.
+     */
+    public static void stop(final String operation, final long start, final boolean error) {
+        if (start != DISABLED)
+            record(operation, System.nanoTime() - start, error);
+    }
+
+    public static void record(final String operation, final long nanos, final boolean error) {
+        Stats s = stats.get(operation);
+        if (s == null)
+            s = stats.computeIfAbsent(operation, op -> new Stats());
+        s.record(nanos, error);
+        for (final Sink sink : sinks) {
+            try {
+                sink.record(operation, nanos, error);
+            } catch (final RuntimeException e) {
+                logger.warn("metrics sink[" + sink + "] failed: " + e, e);
+            }
+        }
+    }
+
+    public static boolean isMetricsEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn the instrumentation on or off, turning it on also registers the
+     * MBean.
+     */
+    public static void setMetricsEnabled(final boolean enabled) {
+        enable(enabled);
+    }
+
+    private static synchronized void enable(final boolean on) {
+        enabled = on;
+        if (on && !registered) {
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName name = new ObjectName(OBJECT_NAME);
+                if (!server.isRegistered(name))
+                    server.registerMBean(mbean, name);
+                registered = true;
+            } catch (final Exception e) {
+                logger.warn("couldn't register the " + OBJECT_NAME + " MBean: " + e, e);
+            }
+        }
+    }
+
+    public static void addSink(final Sink sink) {
+        sinks.add(sink);
+    }
+
+    public static void removeSink(final Sink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Get the statistics of all operations measured so far.
+     */
+    public static Map<String, Stats> getStats() {
+        return Collections.unmodifiableMap(new TreeMap<>(stats));
+    }
+
+    public static Stats getStats(final String operation) {
+        return stats.get(operation);
+    }
+
+    public static void resetStats() {
+        stats.clear();
+    }
+
+    /**
+     * Remember the name of a compiled stylesheet, so transforms can be
+     * measured per stylesheet.
+     */
+    public static void setName(final XsltExecutable xsl, final String name) {
+        if (xsl != null && name != null)
+            names.put(xsl, name);
+    }
+
+    public static String getName(final XsltExecutable xsl) {
+        final String name = names.get(xsl);
+        return (name != null ? name : "anonymous");
+    }
+
+    // MBean
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(final boolean on) {
+        enable(on);
+    }
+
+    @Override
+    public String[] getOperations() {
+        return getStats().keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getSummary() {
+        final List<String> res = new ArrayList<>();
+        for (final Map.Entry<String, Stats> s : getStats().entrySet())
+            res.add(s.getKey() + ": " + s.getValue());
+        return res.toArray(new String[0]);
+    }
+
+    @Override
+    public long getCount(final String operation) {
+        final Stats s = stats.get(operation);
+        return (s == null ? 0 : s.getCount());
+    }
+
+    @Override
+    public long getErrorCount(final String operation) {
+        final Stats s = stats.get(operation);
+        return (s == null ? 0 : s.getErrors());
+    }
+
+    @Override
+    public double getMeanMillis(final String operation) {
+        final Stats s = stats.get(operation);
+        return (s == null ? 0.0 : s.getMeanNanos() / 1000000.0);
+    }
+
+    @Override
+    public double getPercentileMillis(final String operation, final double percentile) {
+        final Stats s = stats.get(operation);
+        return (s == null ? 0.0 : s.getPercentileNanos(percentile) / 1000000.0);
+    }
+
+    @Override
+    public void reset() {
+        resetStats();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+/**
+ * The JMX view on SaxonMetrics.
+ *
+ * @author menzowi
+ */
+public interface SaxonMetricsMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    String[] getOperations();
+
+    String[] getSummary();
+
+    long getCount(String operation);
+
+    long getErrorCount(String operation);
+
+    double getMeanMillis(String operation);
+
+    double getPercentileMillis(String operation, double percentile);
+
+    void reset();
+}
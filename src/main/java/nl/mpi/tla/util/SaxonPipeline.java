@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.xml.transform.Source;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.MessageListener2;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+
+/**
+ * A chain of stylesheets, where each stage gets the result of the previous
+ * one as an in-memory tree, or, when streaming, as events, so nothing is
+ * serialized and parsed again in between. The result of the last stage can
+ * fan out to several branches, i.e., pipelines themselves, which run in
+ * parallel on the same tree.
+ *
+ * <pre>
+ * SaxonPipeline pipeline = new SaxonPipeline()
+ *     .then("normalize", normalize)
+ *     .then(new SaxonPipeline.Stage("enrich", enrich).setParameter(new QName("lang"), new XdmAtomicValue("nl")))
+ *     .fanOut(new SaxonPipeline().then("html", html), new SaxonPipeline().then("solr", solr));
+ * SaxonPipeline.Result res = pipeline.run(source, htmlDestination, solrDestination);
+ * </pre>
+ *
+ * A pipeline can be run by several threads at the same time, as each run
+ * loads its own transformers.
+ *
+ * @author menzowi
+ */
+public class SaxonPipeline {
+
+    /**
+     * A stylesheet with its parameters and listener.
+     */
+    public static class Stage {
+        private final String name;
+        private final XsltExecutable xsl;
+        private final Map<QName, XdmValue> params = new HashMap<>();
+        private Supplier<? extends SaxonListener> listener = null;
+
+        public Stage(final String name, final XsltExecutable xsl) {
+            this.name = name;
+            this.xsl = xsl;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public XsltExecutable getExecutable() {
+            return xsl;
+        }
+
+        public Stage setParameter(final QName name, final XdmValue value) {
+            params.put(name, value);
+            return this;
+        }
+
+        /**
+         * Set how to create the listener of each run of this stage, by
+         * default a SaxonListener with the name of the stage as type.
+         */
+        public Stage setListener(final Supplier<? extends SaxonListener> listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        protected SaxonListener newListener() {
+            return (listener != null ? listener.get() : new SaxonListener(name));
+        }
+
+        protected XsltTransformer load(final SaxonListener listener) {
+            final XsltTransformer transformer = xsl.load();
+            for (final Map.Entry<QName, XdmValue> param : params.entrySet())
+                transformer.setParameter(param.getKey(), param.getValue());
+            transformer.setMessageListener((MessageListener2) listener);
+            transformer.setErrorListener(listener);
+            return transformer;
+        }
+    }
+
+    /**
+     * The timing and messages of a run, by the path of each stage, i.e., its
+     * name prefixed by the index of each branch it's in, e.g., "1/solr" for
+     * the stage solr in the second branch. When streaming the stages of a
+     * chain run interleaved, so they are timed together under their paths
+     * joined by '+'. A stage name used twice in the same chain gets a
+     * suffix, e.g., "fix#2".
+     */
+    public static final class Result {
+        private final Map<String, Long> nanos = new LinkedHashMap<>();
+        private final Map<String, SaxonListener> listeners = new LinkedHashMap<>();
+        private long total = 0;
+
+        void add(final String stage, final long n) {
+            nanos.put(unique(nanos, stage), n);
+        }
+
+        void add(final String stage, final SaxonListener listener) {
+            listeners.put(unique(listeners, stage), listener);
+        }
+
+        private static String unique(final Map<String, ?> map, final String stage) {
+            String key = stage;
+            for (int i = 2; map.containsKey(key); i++)
+                key = stage + "#" + i;
+            return key;
+        }
+
+        void add(final Result result) {
+            nanos.putAll(result.nanos);
+            listeners.putAll(result.listeners);
+        }
+
+        /**
+         * @return The durations of the (chains of) stages, in the order they
+         *         finished, except that branches are listed in order
+         */
+        public Map<String, Long> getDurations(final TimeUnit unit) {
+            final Map<String, Long> res = new LinkedHashMap<>();
+            for (final Map.Entry<String, Long> n : nanos.entrySet())
+                res.put(n.getKey(), unit.convert(n.getValue(), TimeUnit.NANOSECONDS));
+            return Collections.unmodifiableMap(res);
+        }
+
+        /**
+         * @return The duration of a stage, or -1 if it isn't timed on its own
+         */
+        public long getDuration(final String stage, final TimeUnit unit) {
+            final Long n = nanos.get(stage);
+            return (n != null ? unit.convert(n, TimeUnit.NANOSECONDS) : -1);
+        }
+
+        /**
+         * @return The duration of the whole run
+         */
+        public long getDuration(final TimeUnit unit) {
+            return unit.convert(total, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Get the messages of a stage, empty unless its listener captures
+         * them.
+         */
+        public List<SaxonListener.Message> getMessages(final String stage) {
+            final SaxonListener listener = listeners.get(stage);
+            return (listener != null ? listener.getMessages() : Collections.<SaxonListener.Message>emptyList());
+        }
+
+        public boolean hasErrors() {
+            for (final SaxonListener listener : listeners.values()) {
+                if (listener.hasErrors())
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (final Map.Entry<String, Long> d : getDurations(TimeUnit.MILLISECONDS).entrySet())
+                sb.append(sb.length() > 0 ? ", " : "").append(d.getKey()).append(": ").append(d.getValue()).append("ms");
+            return sb.append(" (").append(getDuration(TimeUnit.MILLISECONDS)).append("ms)").toString();
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    private final List<SaxonPipeline> branches = new ArrayList<>();
+
+    private boolean streaming = false;
+
+    private Executor executor = null;
+
+    public SaxonPipeline then(final Stage stage) {
+        if (!branches.isEmpty())
+            throw new IllegalStateException("pipeline: can't add a stage after a fan-out!");
+        stages.add(stage);
+        return this;
+    }
+
+    public SaxonPipeline then(final String name, final XsltExecutable xsl) {
+        return then(new Stage(name, xsl));
+    }
+
+    /**
+     * Feed the result of the last stage to all branches, which run in
+     * parallel. Each branch has its own output(s).
+     */
+    public SaxonPipeline fanOut(final SaxonPipeline... branches) {
+        if (branches.length == 0)
+            throw new IllegalArgumentException("pipeline: a fan-out needs branches!");
+        Collections.addAll(this.branches, branches);
+        return this;
+    }
+
+    /**
+     * Stream the events of a stage into the next, instead of building a tree
+     * in between. This saves memory, but the stages can't be timed
+     * separately.
+     */
+    public SaxonPipeline setStreaming(final boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    /**
+     * Set the executor to run the branches of a fan-out with, by default the
+     * common fork join pool.
+     */
+    public SaxonPipeline setExecutor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return The number of destinations a run needs, i.e., one for each
+     *         branch without a fan-out itself
+     */
+    public int getOutputCount() {
+        if (branches.isEmpty())
+            return 1;
+        int n = 0;
+        for (final SaxonPipeline branch : branches)
+            n += branch.getOutputCount();
+        return n;
+    }
+
+    /**
+     * Run the pipeline.
+     *
+     * @param source The input of the first stage
+     * @param outputs The destination of the last stage, or of each branch in
+     *        order
+     * @return The timing and messages of the stages
+     * @throws SaxonApiException
+     */
+    public Result run(final Source source, final Destination... outputs) throws SaxonApiException {
+        if (outputs.length != getOutputCount())
+            throw new IllegalArgumentException("pipeline: needs " + getOutputCount() + " outputs, got " + outputs.length);
+        final Result result = new Result();
+        final long start = System.nanoTime();
+        run(source, outputs, 0, "", result);
+        result.total = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Run a pipeline without a fan-out into a tree.
+     */
+    public XdmNode transform(final Source source) throws SaxonApiException {
+        final XdmDestination dest = new XdmDestination();
+        run(source, dest);
+        return dest.getXdmNode();
+    }
+
+    /**
+     * Run the pipeline, or a branch of it.
+     *
+     * @param prefix The path of the branch, prefixed to the names of its
+     *        stages in the result
+     */
+    protected void run(final Source source, final Destination[] outputs, final int offset, final String prefix,
+            final Result result) throws SaxonApiException {
+        if (branches.isEmpty()) {
+            if (stages.isEmpty())
+                throw new IllegalStateException("pipeline: has no stages!");
+            runStages(source, outputs[offset], prefix, result);
+            return;
+        }
+        final XdmNode tree;
+        if (stages.isEmpty())
+            tree = Saxon.buildDocument(source);
+        else {
+            final XdmDestination dest = new XdmDestination();
+            runStages(source, dest, prefix, result);
+            tree = dest.getXdmNode();
+        }
+        // the branches share the tree, which is read only; the last runs in
+        // this thread
+        final List<CompletableFuture<Result>> futures = new ArrayList<>();
+        int o = offset;
+        for (int i = 0; i < branches.size() - 1; i++) {
+            final SaxonPipeline branch = branches.get(i);
+            final int off = o;
+            final String path = prefix + i + "/";
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                final Result r = new Result();
+                try {
+                    branch.run(tree.asSource(), outputs, off, path, r);
+                } catch (final SaxonApiException e) {
+                    throw new CompletionException(e);
+                }
+                return r;
+            }, (executor != null ? executor : ForkJoinPool.commonPool())));
+            o += branch.getOutputCount();
+        }
+        final Result last = new Result();
+        SaxonApiException error = null;
+        try {
+            branches.get(branches.size() - 1).run(tree.asSource(), outputs, o, prefix + (branches.size() - 1) + "/",
+                    last);
+        } catch (final SaxonApiException e) {
+            error = e;
+        }
+        // wait for all branches, and report the first failure
+        for (final CompletableFuture<Result> future : futures) {
+            try {
+                result.add(future.join());
+            } catch (final CompletionException e) {
+                if (error == null)
+                    error = (e.getCause() instanceof SaxonApiException ? (SaxonApiException) e.getCause()
+                            : new SaxonApiException(e.getCause()));
+            }
+        }
+        result.add(last);
+        if (error != null)
+            throw error;
+    }
+
+    protected void runStages(final Source source, final Destination dest, final String prefix, final Result result)
+            throws SaxonApiException {
+        if (streaming && stages.size() > 1) {
+            streamStages(source, dest, prefix, result);
+            return;
+        }
+        Source in = source;
+        for (int i = 0; i < stages.size(); i++) {
+            final Stage stage = stages.get(i);
+            final XdmDestination tree = (i < stages.size() - 1 ? new XdmDestination() : null);
+            final SaxonListener listener = stage.newListener();
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                final XsltTransformer transformer = stage.load(listener);
+                transformer.setSource(in);
+                transformer.setDestination(tree != null ? tree : dest);
+                transformer.transform();
+                failed = false;
+            } catch (final SaxonApiException e) {
+                throw new SaxonApiException("pipeline: stage[" + stage.getName() + "] failed: " + e.getMessage(), e);
+            } finally {
+                listener.close();
+                final long n = System.nanoTime() - start;
+                result.add(prefix + stage.getName(), n);
+                result.add(prefix + stage.getName(), listener);
+                if (SaxonMetrics.isMetricsEnabled())
+                    SaxonMetrics.record("transform:" + SaxonMetrics.getName(stage.getExecutable()), n, failed);
+            }
+            if (tree != null)
+                in = tree.getXdmNode().asSource();
+        }
+    }
+
+    // each transformer is the destination of the previous one
+    protected void streamStages(final Source source, final Destination dest, final String prefix,
+            final Result result) throws SaxonApiException {
+        final XsltTransformer[] transformers = new XsltTransformer[stages.size()];
+        final SaxonListener[] listeners = new SaxonListener[stages.size()];
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i < stages.size(); i++) {
+            final Stage stage = stages.get(i);
+            listeners[i] = stage.newListener();
+            transformers[i] = stage.load(listeners[i]);
+            name.append(i > 0 ? "+" : "").append(prefix).append(stage.getName());
+        }
+        for (int i = 0; i < transformers.length; i++)
+            transformers[i].setDestination(i < transformers.length - 1 ? transformers[i + 1] : dest);
+        transformers[0].setSource(source);
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            transformers[0].transform();
+            failed = false;
+        } catch (final SaxonApiException e) {
+            throw new SaxonApiException("pipeline: stages[" + name + "] failed: " + e.getMessage(), e);
+        } finally {
+            final long n = System.nanoTime() - start;
+            result.add(name.toString(), n);
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].close();
+                result.add(prefix + stages.get(i).getName(), listeners[i]);
+                // the stages run interleaved, so each is recorded with the
+                // time of the whole chain
+                if (SaxonMetrics.isMetricsEnabled())
+                    SaxonMetrics.record("transform:" + SaxonMetrics.getName(stages.get(i).getExecutable()), n, failed);
+            }
+        }
+    }
+}
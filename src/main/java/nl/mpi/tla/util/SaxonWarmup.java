@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The warm-up mode of the tlasaxon CLI: compile and run the stylesheets and
+ * XPath expressions listed in a manifest on sample input. Run under
+ * -XX:DumpLoadedClassList it records the classes a typical run loads, from
+ * which an AppCDS archive can be dumped; see src/main/scripts.
+ *
+ * <pre>
+ * tlasaxon -warmup:manifest.txt [-n:iterations]
+ * </pre>
+ *
+ * Each line of the manifest, relative paths are resolved against the
+ * manifest, is one of:
+ *
+ * <pre>
+ * # a comment
+ * ns     prefix uri
+ * xsl    stylesheet.xsl [sample.xml]
+ * xpath  sample.xml expression
+ * </pre>
+ *
+ * @author menzowi
+ */
+public class SaxonWarmup {
+
+    private static final Logger logger = LoggerFactory.getLogger(SaxonWarmup.class.getName());
+
+    private final File manifest;
+
+    private final Map<String, String> nss = new HashMap<>();
+
+    public SaxonWarmup(final File manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Run all the entries of the manifest.
+     *
+     * @return The number of entries that failed
+     */
+    public int run() throws IOException {
+        int failed = 0;
+        final List<String> lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+        for (int l = 0; l < lines.size(); l++) {
+            final String line = lines.get(l).trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            final String[] fields = line.split("\\s+", 3);
+            try {
+                switch (fields[0]) {
+                    case "ns":
+                        nss.put(fields[1], fields[2]);
+                        break;
+                    case "xsl":
+                        xsl(resolve(fields[1]), (fields.length > 2 ? resolve(fields[2]) : null));
+                        break;
+                    case "xpath":
+                        xpath(resolve(fields[1]), fields[2]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown entry type[" + fields[0] + "]");
+                }
+            } catch (final Exception e) {
+                failed++;
+                logger.warn("warmup: line " + (l + 1) + " of [" + manifest + "] failed: " + e, e);
+            }
+        }
+        return failed;
+    }
+
+    protected File resolve(final String path) {
+        final File file = new File(path);
+        return (file.isAbsolute() ? file : new File(manifest.getAbsoluteFile().getParentFile(), path));
+    }
+
+    /**
+     * Run a stylesheet on the sample like tlasaxon -s: -xsl: -o: does, so the
+     * same configuration and serializer are loaded. Without a sample the
+     * stylesheet is only compiled, with the configuration of the command
+     * line.
+     */
+    protected void xsl(final File xsl, final File sample) throws Exception {
+        if (sample == null) {
+            Saxon.getCommandLineContext().getStylesheetCache().get(xsl);
+            return;
+        }
+        final File out = File.createTempFile("warmup", ".xml");
+        try {
+            new Warmup().doTransform(new String[] { "-s:" + sample, "-xsl:" + xsl, "-o:" + out }, "TLA Saxon");
+        } finally {
+            Files.deleteIfExists(out.toPath());
+        }
+    }
+
+    // the command line, failing instead of exiting the JVM
+    private static final class Warmup extends Saxon {
+        @Override
+        protected void quit(final String message, final int code) {
+            throw new IllegalStateException("transform failed[" + code + "]: " + message);
+        }
+    }
+
+    protected void xpath(final File sample, final String xp) throws SaxonApiException {
+        final XdmNode doc = Saxon.buildDocument(new StreamSource(sample));
+        Saxon.xpath2string(doc, xp, null, nss);
+        Saxon.toString(doc);
+    }
+
+    /**
+     * Entry point for the -warmup mode of the CLI.
+     *
+     * @return The exit code
+     */
+    public static int run(final String[] args) {
+        File manifest = null;
+        int n = 1;
+        for (final String arg : args) {
+            if (arg.startsWith("-warmup:"))
+                manifest = new File(arg.substring(8));
+            else if (arg.startsWith("-n:")) {
+                try {
+                    n = Integer.parseInt(arg.substring(3));
+                } catch (final NumberFormatException e) {
+                    System.err.println("ERR: invalid number of iterations[" + arg.substring(3) + "]");
+                    manifest = null;
+                    break;
+                }
+            } else {
+                System.err.println("ERR: unknown argument[" + arg + "]");
+                manifest = null;
+                break;
+            }
+        }
+        if (manifest == null) {
+            System.err.println("Usage: tlasaxon -warmup:<manifest> [-n:<iterations>]");
+            return 2;
+        }
+        try {
+            int failed = 0;
+            for (int i = 0; i < n; i++) {
+                final long start = System.nanoTime();
+                failed = new SaxonWarmup(manifest).run();
+                logger.info("warmup: iteration " + (i + 1) + " took "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms, " + failed + " failures");
+            }
+            return (failed > 0 ? 1 : 0);
+        } catch (final IOException e) {
+            logger.error("warmup: couldn't read manifest[" + manifest + "]: " + e, e);
+            return 1;
+        }
+    }
+}
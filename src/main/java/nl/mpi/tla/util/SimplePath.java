@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+/**
+ * A simple path, i.e., child steps with plain names and optionally a final
+ * attribute step, e.g., @id, cmd:Header/cmd:MdSelfLink or
+ * /cmd:CMD/cmd:Resources/cmd:ResourceProxyList/cmd:ResourceProxy/@id, which
+ * the Saxon helpers evaluate by walking the axes of the tree instead of
+ * compiling the expression. Anything else, e.g., predicates, wildcards or a
+ * prefix that isn't declared, is left to XPath.
+ *
+ * @author menzowi
+ */
+public final class SimplePath {
+
+    public static final String ENABLED_PROPERTY = "nl.mpi.tla.saxon.fastpath";
+
+    private static volatile boolean enabled = Boolean
+            .parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+
+    private static final String NCNAME = "[A-Za-z_][A-Za-z0-9_.\\-]*";
+
+    private static final String QNAME = NCNAME + "(?::" + NCNAME + ")?";
+
+    private static final Pattern SIMPLE = Pattern
+            .compile("/?(?:" + QNAME + "/)*(?:" + QNAME + "|@" + QNAME + ")");
+
+    private static final int MAX_CACHED = 1024;
+
+    private static final SimplePath NONE = new SimplePath(false, new String[0], new String[0], null, null);
+
+    private static final ConcurrentHashMap<String, SimplePath> parsed = new ConcurrentHashMap<>();
+
+    private static final String XML_NS = "http://www.w3.org/XML/1998/namespace";
+
+    private final boolean absolute;
+
+    // the prefixes and local names of the element steps
+    private final String[] prefixes;
+    private final String[] names;
+
+    // the prefix and local name of the final attribute step, if any
+    private final String attrPrefix;
+    private final String attrName;
+
+    private SimplePath(final boolean absolute, final String[] prefixes, final String[] names,
+            final String attrPrefix, final String attrName) {
+        this.absolute = absolute;
+        this.prefixes = prefixes;
+        this.names = names;
+        this.attrPrefix = attrPrefix;
+        this.attrName = attrName;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable the fast path for simple paths in the Saxon helpers.
+     */
+    public static void setEnabled(final boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Parse an expression as a simple path.
+     *
+     * @return The simple path, or null if the expression isn't one
+     */
+    public static SimplePath parse(final String xp) {
+        SimplePath sp = parsed.get(xp);
+        if (sp == null) {
+            sp = (SIMPLE.matcher(xp).matches() ? build(xp) : NONE);
+            if (parsed.size() < MAX_CACHED)
+                parsed.putIfAbsent(xp, sp);
+        }
+        return (sp != NONE ? sp : null);
+    }
+
+    private static SimplePath build(final String xp) {
+        final boolean absolute = xp.startsWith("/");
+        final String[] steps = (absolute ? xp.substring(1) : xp).split("/");
+        final boolean attr = steps[steps.length - 1].startsWith("@");
+        final int n = (attr ? steps.length - 1 : steps.length);
+        final String[] prefixes = new String[n];
+        final String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            final int c = steps[i].indexOf(':');
+            prefixes[i] = (c > 0 ? steps[i].substring(0, c) : null);
+            names[i] = (c > 0 ? steps[i].substring(c + 1) : steps[i]);
+        }
+        String attrPrefix = null;
+        String attrName = null;
+        if (attr) {
+            final String a = steps[steps.length - 1].substring(1);
+            final int c = a.indexOf(':');
+            attrPrefix = (c > 0 ? a.substring(0, c) : null);
+            attrName = (c > 0 ? a.substring(c + 1) : a);
+        }
+        return new SimplePath(absolute, prefixes, names, attrPrefix, attrName);
+    }
+
+    /**
+     * Append the string values of the selected nodes, like xpath2string.
+     *
+     * @return False if the path can't be evaluated here, i.e., XPath should
+     *         be used, in which case nothing has been appended
+     */
+    public boolean append(final XdmItem ctxt, final Map<String, String> nss, final Appendable out)
+            throws IOException {
+        final QName[] steps = resolve(nss);
+        final XdmNode start = start(ctxt);
+        if (steps == null || start == null)
+            return false;
+        walk(start, steps, 0, out);
+        return true;
+    }
+
+    /**
+     * Test if the path selects any node, like xpath2boolean.
+     *
+     * @return The result, or null if XPath should be used
+     */
+    public Boolean exists(final XdmItem ctxt, final Map<String, String> nss) {
+        final QName[] steps = resolve(nss);
+        final XdmNode start = start(ctxt);
+        if (steps == null || start == null)
+            return null;
+        try {
+            return walk(start, steps, 0, null);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e); // nothing is appended
+        }
+    }
+
+    // the node to start from, null if XPath should handle the context
+    private XdmNode start(final XdmItem ctxt) {
+        if (!(ctxt instanceof XdmNode))
+            return null;
+        final XdmNode node = (XdmNode) ctxt;
+        if (!absolute)
+            return node;
+        // XPath raises an error when the root isn't a document node
+        final XdmNode root = node.getRoot();
+        return (root != null && root.getNodeKind() == XdmNodeKind.DOCUMENT ? root : null);
+    }
+
+    // the names of the steps, the attribute last, null if a prefix isn't
+    // declared
+    private QName[] resolve(final Map<String, String> nss) {
+        final QName[] steps = new QName[names.length + (attrName != null ? 1 : 0)];
+        // unprefixed element names are in the default element namespace
+        final String def = (nss != null && nss.get("") != null ? nss.get("") : "");
+        for (int i = 0; i < names.length; i++) {
+            final String uri = (prefixes[i] == null ? def : uri(prefixes[i], nss));
+            if (uri == null)
+                return null;
+            steps[i] = new QName(uri, names[i]);
+        }
+        if (attrName != null) {
+            final String uri = (attrPrefix == null ? "" : uri(attrPrefix, nss));
+            if (uri == null)
+                return null;
+            steps[names.length] = new QName(uri, attrName);
+        }
+        return steps;
+    }
+
+    private static String uri(final String prefix, final Map<String, String> nss) {
+        if (nss != null && nss.containsKey(prefix))
+            return nss.get(prefix);
+        return (prefix.equals("xml") ? XML_NS : null);
+    }
+
+    // walk the steps depth first, which visits the nodes in document order;
+    // without out stop at the first node found
+    private boolean walk(final XdmNode node, final QName[] steps, final int s, final Appendable out)
+            throws IOException {
+        if (s == names.length) {
+            if (attrName == null) {
+                if (out != null)
+                    out.append(node.getStringValue());
+                return true;
+            }
+            final String value = node.getAttributeValue(steps[s]);
+            if (value != null && out != null)
+                out.append(value);
+            return value != null;
+        }
+        boolean found = false;
+        final XdmSequenceIterator<XdmNode> iter = node.axisIterator(Axis.CHILD, steps[s]);
+        try {
+            while (iter.hasNext()) {
+                if (walk(iter.next(), steps, s + 1, out)) {
+                    found = true;
+                    if (out == null)
+                        break;
+                }
+            }
+        } finally {
+            iter.close();
+        }
+        return found;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(absolute ? "/" : "");
+        for (int i = 0; i < names.length; i++)
+            sb.append(i > 0 ? "/" : "").append(prefixes[i] != null ? prefixes[i] + ":" : "").append(names[i]);
+        if (attrName != null)
+            sb.append(names.length > 0 ? "/@" : "@").append(attrPrefix != null ? attrPrefix + ":" : "")
+                    .append(attrName);
+        return sb.toString();
+    }
+}
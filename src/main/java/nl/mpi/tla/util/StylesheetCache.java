@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltExecutable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of compiled stylesheets keyed by their location. A stylesheet is
+ * only recompiled when the modification time or size of its main module, or
+ * of one of the modules it includes or imports, has changed. Concurrent
+ * requests for the same stylesheet share a single compilation.
+ *
+ * @author menzowi
+ */
+public class StylesheetCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(StylesheetCache.class.getName());
+
+    private static final Map<String, String> XSL_NS = Collections.singletonMap("xsl", "http://www.w3.org/1999/XSL/Transform");
+
+    public static final long DEFAULT_CHECK_INTERVAL = 2000;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile boolean enabled = true;
+
+    private volatile long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // the processor to compile with, null for the default one of Saxon
+    private final SaxonContext context;
+
+    public StylesheetCache() {
+        this(null);
+    }
+
+    public StylesheetCache(final SaxonContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Get the compiled stylesheet, (re)compile it if it isn't cached yet or
+     * if one of its modules has changed.
+     *
+     * @param url The location of the stylesheet
+     * @return The XSLT executable
+     * @throws SaxonApiException
+     */
+    public XsltExecutable get(final URL url) throws SaxonApiException {
+        if (!enabled) {
+            misses.incrementAndGet();
+            return compile(url, new LinkedHashMap<>());
+        }
+        final String key = url.toExternalForm();
+        while (true) {
+            final Entry entry = entries.get(key);
+            if (entry == null) {
+                final Entry fresh = new Entry(url);
+                if (entries.putIfAbsent(key, fresh) == null) {
+                    misses.incrementAndGet();
+                    fresh.task.run();
+                    // a failure is reported to this caller, and the entry
+                    // is only retried by later ones
+                    return fresh.get();
+                }
+                continue;
+            }
+            if (entry.task.isDone() && (entry.failed() || entry.isStale(checkInterval))) {
+                // a failed or stale entry found by a later caller
+                entries.remove(key, entry);
+                continue;
+            }
+            final boolean done = entry.task.isDone();
+            final XsltExecutable xsl = entry.get();
+            if (done)
+                hits.incrementAndGet();
+            return xsl;
+        }
+    }
+
+    public XsltExecutable get(final File file) throws SaxonApiException {
+        try {
+            return get(file.toURI().toURL());
+        } catch (final java.net.MalformedURLException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    /**
+     * Compile the stylesheet and collect the modification stamps of all its
+     * modules.
+     */
+    protected XsltExecutable compile(final URL url, final Map<String, long[]> stamps) throws SaxonApiException {
+        final String systemId = url.toExternalForm();
+        stamps.put(systemId, stamp(systemId));
+        final XdmNode xsl = buildDocument(systemId);
+        collectModules(xsl, stamps);
+        return (context != null ? context.buildTransformer(xsl) : Saxon.buildTransformer(xsl));
+    }
+
+    // find the included and imported modules, recursively
+    protected void collectModules(final XdmNode module, final Map<String, long[]> stamps) throws SaxonApiException {
+        final Iterable<XdmItem> hrefs = (context != null
+                ? context.xpathCompile(module, "/*/(xsl:include|xsl:import)/@href", null, XSL_NS)
+                : Saxon.xpathList(module, "/*/(xsl:include|xsl:import)/@href", null, XSL_NS));
+        for (final XdmItem href : hrefs) {
+            final XdmNode node = (XdmNode) href;
+            final URI base = node.getBaseURI();
+            final String uri = (base != null ? base.resolve(node.getStringValue()) : URI.create(node.getStringValue())).toString();
+            if (stamps.containsKey(uri))
+                continue;
+            stamps.put(uri, stamp(uri));
+            try {
+                collectModules(buildDocument(uri), stamps);
+            } catch (final SaxonApiException e) {
+                // the compile will report it
+                logger.debug("couldn't inspect stylesheet module[" + uri + "]: " + e);
+            }
+        }
+    }
+
+    protected XdmNode buildDocument(final String systemId) throws SaxonApiException {
+        final StreamSource src = new StreamSource(systemId);
+        return (context != null ? context.buildDocument(src) : Saxon.buildDocument(src));
+    }
+
+    /**
+     * Determine the modification time and size of a module.
+     */
+    protected static long[] stamp(final String systemId) {
+        try {
+            final URI uri = URI.create(systemId);
+            if ("file".equals(uri.getScheme())) {
+                final File file = new File(uri);
+                return new long[] { file.lastModified(), file.length() };
+            }
+            final URLConnection conn = uri.toURL().openConnection();
+            try {
+                return new long[] { conn.getLastModified(), conn.getContentLengthLong() };
+            } finally {
+                if (conn instanceof HttpURLConnection)
+                    ((HttpURLConnection) conn).disconnect();
+                else
+                    try {
+                        conn.getInputStream().close();
+                    } catch (final Exception e) {
+                        // ignore
+                    }
+            }
+        } catch (final Exception e) {
+            logger.debug("couldn't stamp stylesheet module[" + systemId + "]: " + e);
+            return new long[] { -1L, -1L };
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn the cache on or off, turning it off also drops all cached
+     * stylesheets.
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled)
+            clear();
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Only check the modules for changes if the last check is at least this
+     * many milliseconds ago, defaults to 2 seconds. With 0 the modules are
+     * checked on every request, which for http: modules means a connection
+     * per request.
+     */
+    public void setCheckInterval(final long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public void invalidate(final URL url) {
+        entries.remove(url.toExternalForm());
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the modules, and their stamps, the cached stylesheet depends on.
+     *
+     * @return The module URIs, starting with the main module, or null if the
+     *         stylesheet isn't cached
+     */
+    public List<String> getModules(final URL url) {
+        final Entry entry = entries.get(url.toExternalForm());
+        if (entry == null || !entry.task.isDone() || entry.failed())
+            return null;
+        return Collections.unmodifiableList(new ArrayList<>(entry.stamps.keySet()));
+    }
+
+    private final class Entry {
+        private final Map<String, long[]> stamps = Collections.synchronizedMap(new LinkedHashMap<String, long[]>());
+        private final FutureTask<XsltExecutable> task;
+        private volatile long checked = System.currentTimeMillis();
+
+        Entry(final URL url) {
+            this.task = new FutureTask<>(() -> compile(url, stamps));
+        }
+
+        XsltExecutable get() throws SaxonApiException {
+            try {
+                return task.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SaxonApiException(e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof SaxonApiException)
+                    throw (SaxonApiException) e.getCause();
+                throw new SaxonApiException(e.getCause());
+            }
+        }
+
+        boolean failed() {
+            try {
+                task.get();
+                return false;
+            } catch (final Exception e) {
+                return true;
+            }
+        }
+
+        boolean isStale(final long interval) {
+            final long now = System.currentTimeMillis();
+            if (interval > 0 && now - checked < interval)
+                return false;
+            checked = now;
+            final Map<String, long[]> copy;
+            synchronized (stamps) {
+                copy = new HashMap<>(stamps);
+            }
+            for (final Map.Entry<String, long[]> module : copy.entrySet()) {
+                final long[] current = stamp(module.getKey());
+                if (current[0] != module.getValue()[0] || current[1] != module.getValue()[1]) {
+                    logger.debug("stylesheet module[" + module.getKey() + "] has changed");
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.Version;
+import net.sf.saxon.s9api.MessageListener2;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of serialized transform results in a directory, addressed by the
+ * SHA-256 of the content of the input, of the stylesheet and all its
+ * modules, and of the parameters. When the cache grows beyond its maximum
+ * size the least recently used results are removed.
+ *
+ * Stylesheets that call functions whose result isn't determined by these,
+ * e.g., sx:uuid, current-dateTime or sx:fileExists, or that evaluate
+ * expressions only known at runtime, i.e., sx:evaluate or xsl:evaluate, are
+ * never cached. Neither are stylesheets that use xsl:result-document, as
+ * only the primary result is kept. Other
+ * documents a stylesheet reads, e.g., with doc(), are assumed not to change.
+ * If a stylesheet uses base-uri() or the like, the locations of the input
+ * and the stylesheet are part of the key as well.
+ *
+ * @author menzowi
+ */
+public class TransformCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransformCache.class.getName());
+
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    // calls of functions that make a stylesheet uncacheable, whatever the
+    // prefix
+    private static final Pattern NON_DETERMINISTIC = Pattern.compile("(?<![\\w.-])(?:[\\w.-]+:)?(?:uuid"
+            + "|current-dateTime|current-date|current-time|implicit-timezone|random-number-generator"
+            + "|environment-variable|available-environment-variables"
+            + "|checkURL|fileExists|fileSize|findFirstFile|findBagBase|md5|hash|evaluate)\\s*\\(");
+
+    // instructions that make a stylesheet uncacheable, whatever the prefix:
+    // secondary results aren't kept, and an evaluated expression can be
+    // anything
+    private static final Pattern UNCACHEABLE = Pattern
+            .compile("<(?:[\\w.-]+:)?(?:result-document|evaluate)(?![\\w.-])");
+
+    // calls of functions that depend on the location of the input or the
+    // stylesheet
+    private static final Pattern LOCATION = Pattern
+            .compile("(?<![\\w.-])(?:[\\w.-]+:)?(?:base-uri|document-uri|static-base-uri)\\s*\\(");
+
+    private final File dir;
+
+    private final long maxBytes;
+
+    // the entries in access order with their sizes
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes = 0;
+
+    // what's known about a stylesheet module, by its digest
+    private final ConcurrentHashMap<String, Module> modules = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong uncacheable = new AtomicLong();
+
+    private static final class Module {
+        private final boolean deterministic;
+        private final boolean location;
+
+        Module(final boolean deterministic, final boolean location) {
+            this.deterministic = deterministic;
+            this.location = location;
+        }
+    }
+
+    public TransformCache(final File dir) throws IOException {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Open a cache, the results already in the directory are used and the
+     * time they were last used is their modification time.
+     *
+     * @param dir The directory of the cache
+     * @param maxBytes The maximum size of the cache
+     * @throws IOException
+     */
+    public TransformCache(final File dir, final long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir.toPath());
+        final List<Path> files;
+        try (Stream<Path> stream = Files.walk(dir.toPath(), 2)) {
+            files = stream.filter(p -> Files.isRegularFile(p) && p.getParent() != null
+                    && !p.getParent().equals(dir.toPath())).collect(Collectors.toList());
+        }
+        final Map<Path, Long> modified = new LinkedHashMap<>();
+        for (final Path file : files) {
+            if (file.getFileName().toString().endsWith(".tmp"))
+                Files.deleteIfExists(file); // left by an interrupted put
+            else
+                modified.put(file, Files.getLastModifiedTime(file).toMillis());
+        }
+        synchronized (this) {
+            modified.entrySet().stream().sorted(Map.Entry.comparingByValue()).forEachOrdered(e -> {
+                final long size = e.getKey().toFile().length();
+                entries.put(e.getKey().getFileName().toString(), size);
+                bytes += size;
+            });
+            evict();
+        }
+        logger.debug("transform cache[" + dir + "]: " + entries.size() + " results, " + bytes + " bytes");
+    }
+
+    /**
+     * Compute the key of a transform.
+     *
+     * @return The key, or null if the stylesheet can't be cached
+     * @throws SaxonApiException
+     */
+    public String key(final File xsl, final File input, final Map<QName, XdmValue> params)
+            throws SaxonApiException {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            update(md, Version.getProductVersion());
+            boolean location = false;
+            for (final String module : getModules(xsl)) {
+                final String digest = digest(module);
+                final Module info = getModule(module, digest);
+                if (!info.deterministic) {
+                    uncacheable.incrementAndGet();
+                    return null;
+                }
+                location |= info.location;
+                update(md, digest);
+            }
+            update(md, FileDigests.getInstance().digest(input.toPath(), "SHA-256"));
+            if (location) {
+                update(md, xsl.getAbsoluteFile().toURI().toString());
+                update(md, input.getAbsoluteFile().toURI().toString());
+            }
+            if (params != null) {
+                final Map<String, String> sorted = new TreeMap<>();
+                for (final Map.Entry<QName, XdmValue> param : params.entrySet())
+                    sorted.put(param.getKey().getClarkName(), canonical(param.getValue()));
+                for (final Map.Entry<String, String> param : sorted.entrySet())
+                    update(md, param.getKey() + "=" + param.getValue());
+            }
+            return FileDigests.hex(md.digest());
+        } catch (final IOException | NoSuchAlgorithmException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    // the items of a value with their types, so, e.g., xs:string("1") and
+    // xs:integer(1), or ("a","b") and "a b", differ
+    protected static String canonical(final XdmValue value) {
+        final StringBuilder sb = new StringBuilder();
+        for (final XdmItem item : value) {
+            final String type;
+            final String s;
+            if (item instanceof XdmAtomicValue) {
+                type = ((XdmAtomicValue) item).getTypeName().getClarkName();
+                s = item.getStringValue();
+            } else if (item instanceof XdmNode) {
+                type = "node:" + ((XdmNode) item).getNodeKind();
+                s = item.toString();
+            } else {
+                type = item.getClass().getSimpleName();
+                s = item.toString();
+            }
+            sb.append(type).append('#').append(s.length()).append(':').append(s).append(';');
+        }
+        return sb.toString();
+    }
+
+    private static void update(final MessageDigest md, final String s) {
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    // the main module followed by all included and imported modules
+    protected List<String> getModules(final File xsl) throws SaxonApiException {
+        try {
+            final URL url = xsl.toURI().toURL();
+            Saxon.buildTransformer(xsl);
+            final List<String> cached = Saxon.getStylesheetCache().getModules(url);
+            if (cached != null)
+                return cached;
+            final Map<String, long[]> stamps = new LinkedHashMap<>();
+            stamps.put(url.toExternalForm(), null);
+            final StylesheetCache sc = new StylesheetCache();
+            sc.collectModules(sc.buildDocument(url.toExternalForm()), stamps);
+            return new ArrayList<>(stamps.keySet());
+        } catch (final MalformedURLException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    protected static String digest(final String module) throws IOException, NoSuchAlgorithmException {
+        final URI uri = URI.create(module);
+        if ("file".equals(uri.getScheme()))
+            return FileDigests.getInstance().digest(Paths.get(uri), "SHA-256");
+        final MessageDigest md = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = uri.toURL().openStream()) {
+            final byte[] buf = new byte[8192];
+            for (int n = in.read(buf); n > 0; n = in.read(buf))
+                md.update(buf, 0, n);
+        }
+        return FileDigests.hex(md.digest());
+    }
+
+    private Module getModule(final String module, final String digest) throws IOException {
+        Module info = modules.get(digest);
+        if (info == null) {
+            info = inspect(module);
+            modules.put(digest, info);
+        }
+        return info;
+    }
+
+    private static Module inspect(final String module) throws IOException {
+        final String text;
+        try (InputStream in = URI.create(module).toURL().openStream()) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            for (int n = in.read(buf); n > 0; n = in.read(buf))
+                bytes.write(buf, 0, n);
+            text = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+        final boolean deterministic = !NON_DETERMINISTIC.matcher(text).find() && !UNCACHEABLE.matcher(text).find();
+        if (!deterministic)
+            logger.info("transform cache: stylesheet module[" + module + "] isn't deterministic, or has secondary"
+                    + " results, won't cache it");
+        return new Module(deterministic, LOCATION.matcher(text).find());
+    }
+
+    /**
+     * Is the result of the stylesheet cacheable?
+     */
+    public boolean isCacheable(final File xsl) throws SaxonApiException {
+        try {
+            for (final String module : getModules(xsl)) {
+                if (!getModule(module, digest(module)).deterministic)
+                    return false;
+            }
+            return true;
+        } catch (final IOException | NoSuchAlgorithmException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    private Path path(final String key) {
+        return dir.toPath().resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /**
+     * Copy a cached result to the output.
+     *
+     * @return True if the result was cached
+     */
+    public boolean get(final String key, final File output) throws IOException {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                misses.incrementAndGet();
+                return false;
+            }
+        }
+        final Path path = path(key);
+        try {
+            if (output.getParentFile() != null)
+                Files.createDirectories(output.getParentFile().toPath());
+            Files.copy(path, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (final NoSuchFileException e) {
+            // removed by eviction or by hand
+            remove(key);
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Store a result.
+     */
+    public void put(final String key, final File result) throws IOException {
+        final Path path = path(key);
+        Files.createDirectories(path.getParent());
+        final Path tmp = Files.createTempFile(path.getParent(), key, ".tmp");
+        try {
+            Files.copy(result.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        final long size = Files.size(path);
+        synchronized (this) {
+            final Long prev = entries.put(key, size);
+            bytes += size - (prev != null ? prev : 0);
+            evict();
+        }
+    }
+
+    private synchronized void remove(final String key) {
+        final Long size = entries.remove(key);
+        if (size != null)
+            bytes -= size;
+    }
+
+    // remove the least recently used results until the cache fits
+    private synchronized void evict() {
+        for (final Iterator<Map.Entry<String, Long>> iter = entries.entrySet().iterator(); bytes > maxBytes
+                && iter.hasNext();) {
+            final Map.Entry<String, Long> entry = iter.next();
+            try {
+                Files.deleteIfExists(path(entry.getKey()));
+            } catch (final IOException e) {
+                logger.warn("transform cache: couldn't remove[" + entry.getKey() + "]: " + e);
+            }
+            bytes -= entry.getValue();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Transform the input into the output, or copy the cached result.
+     *
+     * @return True if the result came from the cache
+     * @throws SaxonApiException
+     */
+    public boolean transform(final File xsl, final File input, final Map<QName, XdmValue> params, final File output)
+            throws SaxonApiException {
+        try {
+            final String key = key(xsl, input, params);
+            if (key != null && get(key, output))
+                return true;
+            final XsltTransformer transformer = Saxon.buildTransformer(xsl).load();
+            if (params != null) {
+                for (final Map.Entry<QName, XdmValue> param : params.entrySet())
+                    transformer.setParameter(param.getKey(), param.getValue());
+            }
+            final SaxonListener listener = new SaxonListener("TransformCache", input.getPath());
+            transformer.setMessageListener((MessageListener2) listener);
+            transformer.setErrorListener(listener);
+            if (output.getParentFile() != null)
+                Files.createDirectories(output.getParentFile().toPath());
+            transformer.setSource(new StreamSource(input));
+            transformer.setDestination(Saxon.getProcessor().newSerializer(output));
+            transformer.transform();
+            if (key != null)
+                put(key, output);
+            return false;
+        } catch (final IOException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of keys requested for stylesheets that can't be
+     *         cached
+     */
+    public long getUncacheable() {
+        return uncacheable.get();
+    }
+
+    /**
+     * Remove all cached results.
+     */
+    public synchronized void clear() throws IOException {
+        for (final String key : new ArrayList<>(entries.keySet()))
+            Files.deleteIfExists(path(key));
+        entries.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "transform cache[" + dir + "]: " + size() + " results, " + getBytes() + " bytes, " + getHits()
+                + " hits, " + getMisses() + " misses, " + getUncacheable() + " uncacheable";
+    }
+}
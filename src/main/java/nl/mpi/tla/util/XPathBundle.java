@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.AtomicValue;
+
+/**
+ * A bundle of named XPath expressions, sharing namespaces and variables,
+ * which are compiled once and evaluated together against a document, e.g.,
+ * to extract all the fields of a record for an index. A compiled bundle can
+ * be evaluated by several threads at the same time.
+ *
+ * <pre>
+ * XPathBundle fields = new XPathBundle()
+ *     .namespace("cmd", "http://www.clarin.eu/cmd/1")
+ *     .add("self", "/cmd:CMD/cmd:Header/cmd:MdSelfLink")
+ *     .add("resources", "count(//cmd:ResourceProxy)")
+ *     .compile();
+ * XPathBundle.Result res = fields.evaluate(record);
+ * String self = res.getString("self");
+ * Long n = res.getLong("resources");
+ * </pre>
+ *
+ * @author menzowi
+ */
+public class XPathBundle {
+
+    private final Processor processor;
+
+    private final Map<String, String> nss = new LinkedHashMap<>();
+
+    private final Set<String> vars = new LinkedHashSet<>();
+
+    private final Map<String, String> expressions = new LinkedHashMap<>();
+
+    private volatile String[] names = null;
+
+    private volatile XPathExecutable[] executables = null;
+
+    private volatile QName[] declared = null;
+
+    // replaces the context item after an evaluation, so a pooled selector
+    // doesn't keep the last document reachable
+    private static final XdmAtomicValue NO_CONTEXT = new XdmAtomicValue("");
+
+    // each thread reuses its own selectors
+    private final ThreadLocal<XPathSelector[]> selectors = new ThreadLocal<>();
+
+    public XPathBundle() {
+        this(null);
+    }
+
+    /**
+     * @param processor The processor to compile with, null for the default
+     *        processor of Saxon
+     */
+    public XPathBundle(final Processor processor) {
+        this.processor = processor;
+    }
+
+    public XPathBundle namespace(final String prefix, final String uri) {
+        checkNotCompiled();
+        nss.put(prefix, uri);
+        return this;
+    }
+
+    public XPathBundle namespaces(final Map<String, String> nss) {
+        checkNotCompiled();
+        this.nss.putAll(nss);
+        return this;
+    }
+
+    /**
+     * Declare a variable the expressions can refer to.
+     */
+    public XPathBundle variable(final String name) {
+        checkNotCompiled();
+        vars.add(name);
+        return this;
+    }
+
+    public XPathBundle add(final String name, final String xpath) {
+        checkNotCompiled();
+        expressions.put(name, xpath);
+        return this;
+    }
+
+    private void checkNotCompiled() {
+        if (executables != null)
+            throw new IllegalStateException("the XPath bundle is already compiled!");
+    }
+
+    /**
+     * Compile all expressions, afterwards the bundle can't be changed.
+     */
+    public synchronized XPathBundle compile() throws SaxonApiException {
+        if (executables != null)
+            return this;
+        final XPathCompiler xpc = (processor != null ? processor : Saxon.getProcessor()).newXPathCompiler();
+        for (final String name : vars)
+            xpc.declareVariable(new QName(name));
+        for (final Map.Entry<String, String> ns : nss.entrySet())
+            xpc.declareNamespace(ns.getKey(), ns.getValue());
+        final String[] n = new String[expressions.size()];
+        final XPathExecutable[] x = new XPathExecutable[n.length];
+        int i = 0;
+        for (final Map.Entry<String, String> expr : expressions.entrySet()) {
+            n[i] = expr.getKey();
+            try {
+                x[i] = xpc.compile(expr.getValue());
+            } catch (final SaxonApiException e) {
+                throw new SaxonApiException("XPath bundle: expression[" + expr.getKey() + "][" + expr.getValue()
+                        + "] failed to compile: " + e.getMessage(), e);
+            }
+            i++;
+        }
+        final QName[] d = new QName[vars.size()];
+        i = 0;
+        for (final String name : vars)
+            d[i++] = new QName(name);
+        names = n;
+        declared = d;
+        executables = x;
+        return this;
+    }
+
+    public List<String> getNames() {
+        return Collections.unmodifiableList(new ArrayList<>(expressions.keySet()));
+    }
+
+    public Result evaluate(final XdmItem ctxt) throws SaxonApiException {
+        return evaluate(ctxt, null);
+    }
+
+    /**
+     * Evaluate all expressions against the context item.
+     *
+     * @param ctxt The context item
+     * @param vars The values of the declared variables, each of them should
+     *        have a value
+     * @return The values of all expressions
+     * @throws SaxonApiException
+     */
+    public Result evaluate(final XdmItem ctxt, final Map<String, XdmValue> vars) throws SaxonApiException {
+        if (executables == null)
+            compile();
+        final XPathExecutable[] x = executables;
+        final QName[] d = declared;
+        final XdmValue[] values = new XdmValue[d.length];
+        for (int i = 0; i < d.length; i++) {
+            values[i] = (vars != null ? vars.get(d[i].getLocalName()) : null);
+            if (values[i] == null)
+                throw new SaxonApiException("XPath bundle: variable[" + d[i].getLocalName() + "] has no value");
+        }
+        XPathSelector[] xps = selectors.get();
+        if (xps == null) {
+            xps = new XPathSelector[x.length];
+            for (int i = 0; i < x.length; i++)
+                xps[i] = x[i].load();
+            selectors.set(xps);
+        }
+        final Map<String, XdmValue> results = new HashMap<>(x.length * 2);
+        for (int i = 0; i < x.length; i++) {
+            final XPathSelector selector = xps[i];
+            try {
+                selector.setContextItem(ctxt);
+                for (int v = 0; v < d.length; v++)
+                    selector.setVariable(d[v], values[v]);
+                results.put(names[i], selector.evaluate());
+            } catch (final SaxonApiException e) {
+                xps[i] = x[i].load(); // don't reuse a selector after a failure
+                throw new SaxonApiException("XPath bundle: expression[" + names[i] + "] failed: " + e.getMessage(), e);
+            } finally {
+                release(xps[i]);
+            }
+        }
+        return new Result(results);
+    }
+
+    // drop the references to the context and the variable values
+    private void release(final XPathSelector selector) {
+        try {
+            selector.setContextItem(NO_CONTEXT);
+            for (final QName name : declared)
+                selector.setVariable(name, XdmEmptySequence.getInstance());
+        } catch (final SaxonApiException e) {
+            // the selector is still usable, it only keeps the references
+        }
+    }
+
+    /**
+     * The values of the expressions of a bundle for a single context item.
+     */
+    public static final class Result {
+        private final Map<String, XdmValue> values;
+
+        Result(final Map<String, XdmValue> values) {
+            this.values = values;
+        }
+
+        public Map<String, XdmValue> asMap() {
+            return Collections.unmodifiableMap(values);
+        }
+
+        public XdmValue getValue(final String name) {
+            final XdmValue value = values.get(name);
+            if (value == null)
+                throw new IllegalArgumentException("XPath bundle: unknown expression[" + name + "]");
+            return value;
+        }
+
+        /**
+         * Get the concatenated string values of the items, like
+         * Saxon.xpath2string.
+         */
+        public String getString(final String name) {
+            final XdmValue value = getValue(name);
+            if (value.size() == 1)
+                return value.itemAt(0).getStringValue();
+            final StringBuilder sb = new StringBuilder();
+            for (final XdmItem item : value)
+                sb.append(item.getStringValue());
+            return sb.toString();
+        }
+
+        /**
+         * Get the effective boolean value, like Saxon.xpath2boolean.
+         */
+        public boolean getBoolean(final String name) throws SaxonApiException {
+            final XdmValue value = getValue(name);
+            if (value.size() == 0)
+                return false;
+            final XdmItem first = value.itemAt(0);
+            if (first instanceof XdmNode)
+                return true;
+            if (value.size() > 1 || !(first instanceof XdmAtomicValue))
+                throw new SaxonApiException("XPath bundle: expression[" + name + "] has no effective boolean value");
+            try {
+                return ((AtomicValue) first.getUnderlyingValue()).effectiveBooleanValue();
+            } catch (final XPathException e) {
+                throw new SaxonApiException(e);
+            }
+        }
+
+        /**
+         * Get the first item as an integer.
+         *
+         * @return The integer, or null if the value is empty
+         */
+        public Long getLong(final String name) throws SaxonApiException {
+            final XdmValue value = getValue(name);
+            if (value.size() == 0)
+                return null;
+            final XdmItem first = value.itemAt(0);
+            if (first instanceof XdmAtomicValue) {
+                try {
+                    return ((XdmAtomicValue) first).getLong();
+                } catch (final SaxonApiException e) {
+                    // try the string value below, e.g., for xs:double
+                }
+            }
+            final String s = first.getStringValue().trim();
+            try {
+                return Long.parseLong(s);
+            } catch (final NumberFormatException e) {
+                try {
+                    final double d = Double.parseDouble(s);
+                    if (d == Math.rint(d) && !Double.isInfinite(d))
+                        return (long) d;
+                } catch (final NumberFormatException ex) {
+                    // reported below
+                }
+                throw new SaxonApiException("XPath bundle: expression[" + name + "] value[" + s + "] isn't an integer");
+            }
+        }
+
+        public long getLong(final String name, final long def) throws SaxonApiException {
+            final Long l = getLong(name);
+            return (l != null ? l : def);
+        }
+
+        public List<XdmItem> getList(final String name) {
+            final List<XdmItem> list = new ArrayList<>();
+            for (final XdmItem item : getValue(name))
+                list.add(item);
+            return list;
+        }
+
+        @Override
+        public String toString() {
+            return values.toString();
+        }
+    }
+}
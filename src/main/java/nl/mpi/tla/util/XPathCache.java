@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+
+/**
+ * A bounded LRU cache of compiled XPath expressions. An XPathExecutable is
+ * immutable and can be shared by threads, so only loading the selector has
+ * to happen per evaluation.
+ *
+ * @author menzowi
+ */
+public class XPathCache {
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+
+    private final Processor processor;
+
+    private volatile boolean enabled = true;
+
+    private volatile int maxSize;
+
+    private final LinkedHashMap<Key, XPathExecutable> cache = new LinkedHashMap<Key, XPathExecutable>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, XPathExecutable> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public XPathCache(final Processor processor) {
+        this(processor, DEFAULT_MAX_SIZE);
+    }
+
+    public XPathCache(final Processor processor, final int maxSize) {
+        this.processor = processor;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the compiled version of an XPath expression, compile it if it isn't
+     * cached yet.
+     *
+     * @param xp The XPath expression
+     * @param vars The names of the variables the expression may refer to
+     * @param nss The namespace prefix to URI mapping
+     * @return The XPath executable
+     * @throws SaxonApiException
+     */
+    public XPathExecutable compile(final String xp, final Collection<String> vars, final Map<String, String> nss)
+            throws SaxonApiException {
+        if (!enabled || maxSize <= 0) {
+            misses.incrementAndGet();
+            return doCompile(xp, vars, nss);
+        }
+        final Key key = new Key(xp, vars, nss);
+        XPathExecutable xpe;
+        synchronized (cache) {
+            xpe = cache.get(key);
+        }
+        if (xpe != null) {
+            hits.incrementAndGet();
+            return xpe;
+        }
+        misses.incrementAndGet();
+        // compile outside the lock, if another thread was quicker the first one wins
+        xpe = doCompile(xp, vars, nss);
+        synchronized (cache) {
+            final XPathExecutable prev = cache.get(key);
+            if (prev != null)
+                return prev;
+            cache.put(key, xpe);
+        }
+        return xpe;
+    }
+
+    protected XPathExecutable doCompile(final String xp, final Collection<String> vars, final Map<String, String> nss)
+            throws SaxonApiException {
+        final XPathCompiler xpc = processor.newXPathCompiler();
+        if (vars != null) {
+            for (final String name : vars) {
+                xpc.declareVariable(new QName(name));
+            }
+        }
+        if (nss != null) {
+            for (final Map.Entry<String, String> ns : nss.entrySet()) {
+                xpc.declareNamespace(ns.getKey(), ns.getValue());
+            }
+        }
+        return xpc.compile(xp);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn the cache on or off, turning it off also drops all cached
+     * expressions.
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled)
+            clear();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Resize the cache, the least recently used expressions are dropped when
+     * the cache shrinks.
+     */
+    public void setMaxSize(final int maxSize) {
+        synchronized (cache) {
+            this.maxSize = maxSize;
+            final Iterator<Key> iter = cache.keySet().iterator();
+            while (cache.size() > Math.max(maxSize, 0) && iter.hasNext()) {
+                iter.next();
+                iter.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        final long h = hits.get();
+        final long t = h + misses.get();
+        return (t == 0 ? 0.0 : (double) h / t);
+    }
+
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "XPathCache[size=" + size() + ", maxSize=" + getMaxSize() + ", enabled=" + enabled + ", hits="
+                + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+    // the expression is compiled in the static context of the namespaces and the variable names
+    private static final class Key {
+        private final String xp;
+        private final SortedSet<String> vars;
+        private final SortedMap<String, String> nss;
+        private final int hash;
+
+        Key(final String xp, final Collection<String> vars, final Map<String, String> nss) {
+            this.xp = xp;
+            this.vars = (vars == null || vars.isEmpty() ? Collections.<String>emptySortedSet() : new TreeSet<>(vars));
+            this.nss = (nss == null || nss.isEmpty() ? Collections.<String, String>emptySortedMap() : new TreeMap<>(nss));
+            this.hash = 31 * (31 * xp.hashCode() + this.vars.hashCode()) + this.nss.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key k = (Key) o;
+            return hash == k.hash && xp.equals(k.xp) && vars.equals(k.vars) && nss.equals(k.nss);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the nodes of a document by the string values of a key
+ * expression, like xsl:key, to replace repeated scans like
+ * xpathSingle(doc, "//*[@id=$x]", vars) by a lookup. The key expression is
+ * evaluated with each node selected by the nodes expression as context, and
+ * the string value of each of its items is a key of the node. Once built an index
+ * doesn't change, so it can be used by several threads at the same time.
+ *
+ * <pre>
+ * XdmIndex ids = XdmIndex.get(doc, "//*[@id]", "@id", null);
+ * XdmNode node = ids.first("a12");
+ * </pre>
+ *
+ * From XSLT use sx:index($doc, '//*[@id]', '@id', $x), which uses the same
+ * indexes, which live as long as the document does.
+ *
+ * @author menzowi
+ */
+public final class XdmIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(XdmIndex.class.getName());
+
+    // the name of the indexes of a tree in its user data
+    private static final String USER_DATA = XdmIndex.class.getName();
+
+    // the nodes of a key: a single XdmNode, or an XdmValue of several nodes
+    private final Map<String, XdmValue> index;
+
+    private final int nodes;
+
+    private final long entries;
+
+    private XdmIndex(final Map<String, XdmValue> index, final int nodes, final long entries) {
+        this.index = index;
+        this.nodes = nodes;
+        this.entries = entries;
+    }
+
+    /**
+     * Build a new index.
+     *
+     * @param doc The document, or any other node, to evaluate the nodes
+     *        expression on
+     * @param nodes The expression selecting the nodes to index
+     * @param key The expression, evaluated on each node, giving its keys
+     * @param nss The namespaces of both expressions
+     * @return The index
+     * @throws SaxonApiException
+     */
+    public static XdmIndex build(final XdmNode doc, final String nodes, final String key,
+            final Map<String, String> nss) throws SaxonApiException {
+        final long start = SaxonMetrics.start();
+        boolean failed = true;
+        try {
+            final XPathCompiler xpc = new Processor(doc.getUnderlyingNode().getConfiguration()).newXPathCompiler();
+            if (nss != null) {
+                for (final Map.Entry<String, String> ns : nss.entrySet())
+                    xpc.declareNamespace(ns.getKey(), ns.getValue());
+            }
+            final XPathSelector nodeSelector = xpc.compile(nodes).load();
+            final XPathSelector keySelector = xpc.compile(key).load();
+            nodeSelector.setContextItem(doc);
+            final Map<String, List<XdmNode>> lists = new HashMap<>();
+            int n = 0;
+            long e = 0;
+            for (final XdmItem item : nodeSelector) {
+                if (!(item instanceof XdmNode))
+                    throw new SaxonApiException("index: nodes expression[" + nodes + "] selected a non-node item");
+                final XdmNode node = (XdmNode) item;
+                n++;
+                keySelector.setContextItem(node);
+                // the string value of a node is its typed value, as the
+                // documents aren't schema validated
+                for (final XdmItem k : keySelector) {
+                    final List<XdmNode> list = lists.computeIfAbsent(k.getStringValue(), s -> new ArrayList<>(1));
+                    // a node with the same key twice is only added once
+                    if (list.isEmpty() || !list.get(list.size() - 1).equals(node)) {
+                        list.add(node);
+                        e++;
+                    }
+                }
+            }
+            final Map<String, XdmValue> index = new HashMap<>(lists.size() * 4 / 3 + 1);
+            for (final Map.Entry<String, List<XdmNode>> entry : lists.entrySet()) {
+                final List<XdmNode> list = entry.getValue();
+                index.put(entry.getKey(), (list.size() == 1 ? list.get(0) : new XdmValue(list)));
+            }
+            final XdmIndex res = new XdmIndex(index, n, e);
+            logger.debug("index[" + nodes + "][" + key + "]: " + res);
+            failed = false;
+            return res;
+        } finally {
+            SaxonMetrics.stop("index", start, failed);
+        }
+    }
+
+    /**
+     * Get an index of the document of a node, which is built on first use and
+     * kept with the document, so it's shared by all users of the same
+     * document and expressions, and is gone when the document is.
+     *
+     * @param node Any node of the document, the index is of its root
+     * @param nodes The expression selecting the nodes to index
+     * @param key The expression, evaluated on each node, giving its keys
+     * @param nss The namespaces of both expressions
+     * @return The index
+     * @throws SaxonApiException
+     */
+    public static XdmIndex get(final XdmNode node, final String nodes, final String key,
+            final Map<String, String> nss) throws SaxonApiException {
+        final ConcurrentHashMap<String, XdmIndex> indexes = getIndexes(node.getUnderlyingNode().getTreeInfo());
+        final String id = nodes + '\u0000' + key + '\u0000' + (nss != null ? new TreeMap<>(nss) : "");
+        XdmIndex index = indexes.get(id);
+        if (index == null) {
+            // two threads might build the same index, but only one is kept
+            index = build(node.getRoot(), nodes, key, nss);
+            final XdmIndex prev = indexes.putIfAbsent(id, index);
+            if (prev != null)
+                index = prev;
+        }
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentHashMap<String, XdmIndex> getIndexes(final TreeInfo tree) {
+        synchronized (tree) {
+            ConcurrentHashMap<String, XdmIndex> indexes = (ConcurrentHashMap<String, XdmIndex>) tree.getUserData(USER_DATA);
+            if (indexes == null) {
+                indexes = new ConcurrentHashMap<>();
+                tree.setUserData(USER_DATA, indexes);
+            }
+            return indexes;
+        }
+    }
+
+    /**
+     * Drop the indexes kept with the document of a node.
+     */
+    public static void clear(final XdmNode node) {
+        final TreeInfo tree = node.getUnderlyingNode().getTreeInfo();
+        synchronized (tree) {
+            tree.setUserData(USER_DATA, null);
+        }
+    }
+
+    /**
+     * Look up the nodes with a key.
+     *
+     * @return The nodes in document order, or the empty sequence
+     */
+    public XdmValue lookup(final String key) {
+        final XdmValue value = index.get(key);
+        return (value != null ? value : XdmEmptySequence.getInstance());
+    }
+
+    /**
+     * Look up the nodes with any of the keys.
+     *
+     * @return The nodes in document order without duplicates, or the empty
+     *         sequence
+     */
+    public XdmValue lookup(final Iterable<String> keys) {
+        final List<XdmNode> res = new ArrayList<>();
+        int found = 0;
+        XdmValue last = null;
+        for (final String key : keys) {
+            final XdmValue value = index.get(key);
+            if (value == null || value == last)
+                continue;
+            for (final XdmItem node : value)
+                res.add((XdmNode) node);
+            found++;
+            last = value;
+        }
+        if (found > 1) {
+            res.sort((a, b) -> a.getUnderlyingNode().compareOrder(b.getUnderlyingNode()));
+            for (int i = res.size() - 1; i > 0; i--) {
+                if (res.get(i).equals(res.get(i - 1)))
+                    res.remove(i);
+            }
+        }
+        return (found == 1 ? last : (res.isEmpty() ? XdmEmptySequence.getInstance() : new XdmValue(res)));
+    }
+
+    /**
+     * Look up the first node, in document order, with a key.
+     *
+     * @return The node, or null
+     */
+    public XdmNode first(final String key) {
+        final XdmValue value = index.get(key);
+        return (value == null ? null : (XdmNode) value.itemAt(0));
+    }
+
+    public boolean contains(final String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return The number of distinct keys
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return The number of nodes selected by the nodes expression
+     */
+    public int getNodeCount() {
+        return nodes;
+    }
+
+    /**
+     * @return The number of key to node entries
+     */
+    public long getEntryCount() {
+        return entries;
+    }
+
+    /**
+     * Estimate the memory used by the index itself, i.e., without the
+     * document, in bytes. This is a rough count of the map entries, the keys
+     * and the references to the nodes.
+     */
+    public long getMemoryUsage() {
+        long bytes = 16 + 48 + 8L * Integer.highestOneBit(Math.max(index.size(), 1) * 2); // map and table
+        for (final Map.Entry<String, XdmValue> entry : index.entrySet()) {
+            bytes += 32; // map entry
+            bytes += 40 + 2L * entry.getKey().length(); // key string
+            final int n = entry.getValue().size();
+            bytes += (n == 1 ? 16 : 32 + 16L * n); // node wrappers, and the value holding several
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return nodes + " nodes, " + index.size() + " keys, " + entries + " entries, ~" + (getMemoryUsage() / 1024)
+                + "KB";
+    }
+}
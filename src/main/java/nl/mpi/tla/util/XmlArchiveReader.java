@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Reads the entries of a zip file as XML documents, which are parsed lazily
+ * while iterating. With several threads the next entries are parsed in
+ * parallel, but at most a bounded number of parsed documents waits to be
+ * taken, so memory use doesn't grow with the size of the archive. The
+ * entries are returned in the order of the archive.
+ *
+ * <pre>
+ * try (XmlArchiveReader zip = new XmlArchiveReader(new File("harvest.zip")).setThreads(4)) {
+ *     for (XmlArchiveReader.Entry entry : zip)
+ *         index(entry.getName(), entry.getDocument());
+ * }
+ * </pre>
+ *
+ * Problems found while iterating are thrown as a RuntimeException with a
+ * SaxonApiException as cause.
+ *
+ * @author menzowi
+ */
+public class XmlArchiveReader implements Closeable, Iterable<XmlArchiveReader.Entry> {
+
+    /**
+     * An entry of the archive and its document.
+     */
+    public static final class Entry {
+        private final String name;
+        private final XdmNode doc;
+
+        Entry(final String name, final XdmNode doc) {
+            this.name = name;
+            this.doc = doc;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public XdmNode getDocument() {
+            return doc;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final File file;
+
+    private final ZipFile zip;
+
+    private int threads = 1;
+
+    private int maxInFlight = 0;
+
+    private Predicate<String> filter = name -> true;
+
+    private ExecutorService pool = null;
+
+    public XmlArchiveReader(final File file) throws IOException {
+        this.file = file;
+        this.zip = new ZipFile(file);
+    }
+
+    /**
+     * Set the number of threads that parse entries, defaults to 1, i.e.,
+     * each entry is parsed by the iterating thread when it's asked for.
+     */
+    public XmlArchiveReader setThreads(final int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Set the maximum number of entries parsed ahead, defaults to twice the
+     * number of threads.
+     */
+    public XmlArchiveReader setMaxInFlight(final int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Only read the entries whose name is accepted, e.g.,
+     * name -&gt; name.endsWith(".xml"). Directories are always skipped.
+     */
+    public XmlArchiveReader setFilter(final Predicate<String> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * @return The names of the entries that will be read
+     */
+    public List<String> getNames() {
+        final List<String> names = new ArrayList<>();
+        for (final Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+            final ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && filter.test(entry.getName()))
+                names.add(entry.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Parse a single entry, gzip compressed entries are decompressed too.
+     */
+    public Entry read(final String name) throws SaxonApiException {
+        final ZipEntry entry = zip.getEntry(name);
+        if (entry == null)
+            throw new SaxonApiException("zip[" + file + "] has no entry[" + name + "]");
+        try (InputStream in = zip.getInputStream(entry)) {
+            return new Entry(name, Saxon.buildDocument(new StreamSource(in, getSystemId(name))));
+        } catch (final IOException | URISyntaxException e) {
+            throw new SaxonApiException(e);
+        }
+    }
+
+    // the jar: URI of an entry, with its path percent-encoded
+    protected String getSystemId(final String name) throws URISyntaxException {
+        final String path = new URI(null, null, "/" + name, null).toASCIIString();
+        return "jar:" + file.getAbsoluteFile().toURI() + "!" + path;
+    }
+
+    private synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                final Thread t = new Thread(r, "XmlArchiveReader");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pool;
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        final Iterator<String> names = getNames().iterator();
+        final int window = (maxInFlight > 0 ? maxInFlight : 2 * threads);
+        if (threads == 1) {
+            return new Iterator<Entry>() {
+                @Override
+                public boolean hasNext() {
+                    return names.hasNext();
+                }
+
+                @Override
+                public Entry next() {
+                    try {
+                        return read(names.next());
+                    } catch (final SaxonApiException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        final ExecutorService executor = getPool();
+        return new Iterator<Entry>() {
+            private final ArrayDeque<Future<Entry>> ahead = new ArrayDeque<>();
+
+            private void fill() {
+                while (ahead.size() < window && names.hasNext()) {
+                    final String name = names.next();
+                    ahead.add(executor.submit(() -> read(name)));
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                fill();
+                return !ahead.isEmpty();
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                final Future<Entry> future = ahead.poll();
+                fill();
+                try {
+                    return future.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(new SaxonApiException(e));
+                } catch (final ExecutionException e) {
+                    throw new RuntimeException(e.getCause() instanceof SaxonApiException ? e.getCause()
+                            : new SaxonApiException(e.getCause()));
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+        zip.close();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015-2018 The Language Archive, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.xml.transform.Source;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * Writes many XML documents as the entries of a single zip file, in one
+ * pass. The entries can be added from several threads, they're written one
+ * at a time. The zip file is written with the buffer size, compression
+ * level and atomicity of the save options. If adding an entry fails the zip
+ * file is aborted, and further adds and close fail as well.
+ *
+ * <pre>
+ * try (XmlArchiveWriter zip = new XmlArchiveWriter(new File("export.zip"))) {
+ *     for (...)
+ *         zip.add(id + ".xml", doc);
+ * }
+ * </pre>
+ *
+ * @author menzowi
+ */
+public class XmlArchiveWriter implements Closeable {
+
+    private final SaveOptions.Output output;
+
+    private final Zip zip;
+
+    private int entries = 0;
+
+    // the entry whose failure broke the zip file
+    private String broken = null;
+
+    private boolean closed = false;
+
+    // a zip whose deflater can be ended, as only close() would end it
+    private static final class Zip extends ZipOutputStream {
+        Zip(final OutputStream out) {
+            super(out);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+
+    public XmlArchiveWriter(final File file) throws IOException {
+        this(file, new SaveOptions());
+    }
+
+    public XmlArchiveWriter(final File file, final SaveOptions options) throws IOException {
+        // the zip compresses the entries itself
+        final SaveOptions opts = new SaveOptions().setCompression(SaveOptions.Compression.NONE)
+                .setBufferSize(options.getBufferSize()).setAtomic(options.isAtomic()).setSync(options.isSync());
+        this.output = opts.open(file);
+        this.zip = new Zip(output);
+        this.zip.setLevel(options.getLevel());
+    }
+
+    public synchronized void add(final String name, final XdmNode node) throws SaxonApiException {
+        add(name, out -> Saxon.save(node, out));
+    }
+
+    public synchronized void add(final String name, final Source source) throws SaxonApiException {
+        add(name, out -> Saxon.save(source, out));
+    }
+
+    private interface Writing {
+        void write(OutputStream out) throws SaxonApiException;
+    }
+
+    // a failure halfway an entry breaks the zip file, as the next entry
+    // would silently complete the truncated one
+    private void add(final String name, final Writing writing) throws SaxonApiException {
+        if (broken != null)
+            throw new SaxonApiException("zip is aborted, adding entry[" + broken + "] failed");
+        if (closed)
+            throw new SaxonApiException("zip is closed");
+        boolean done = false;
+        try {
+            zip.putNextEntry(new ZipEntry(name));
+            writing.write(entry());
+            zip.closeEntry();
+            entries++;
+            done = true;
+        } catch (final IOException e) {
+            throw new SaxonApiException(e);
+        } finally {
+            if (!done) {
+                broken = name;
+                discard();
+            }
+        }
+    }
+
+    // the current entry, which the serializer can't close
+    private OutputStream entry() {
+        return new FilterOutputStream(zip) {
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    public synchronized int size() {
+        return entries;
+    }
+
+    /**
+     * Complete the zip file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (broken != null)
+            throw new IOException("zip is aborted, adding entry[" + broken + "] failed");
+        if (closed)
+            return;
+        try {
+            zip.finish();
+        } catch (final IOException e) {
+            discard();
+            throw e;
+        }
+        closed = true;
+        zip.end();
+        output.close();
+    }
+
+    /**
+     * Give up on the zip file, removing what's written so far.
+     */
+    public synchronized void abort() {
+        discard();
+    }
+
+    private void discard() {
+        closed = true;
+        output.abort();
+        zip.end();
+    }
+}